@@ -0,0 +1,198 @@
+package com.android.demo.jnotepad;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.text.Editable;
+import android.text.TextUtils;
+import android.text.TextWatcher;
+import android.widget.EditText;
+
+/**
+ * Saves the note being edited while the user types. It watches the text 
+ * box and:
+ * <ul>
+ * <li>only saves when the text was changed since the last save (a dirty 
+ * flag)</li>
+ * <li>waits for a pause in the typing, but never longer than 
+ * MAX_DELAY_MILLIS while the user keeps typing</li>
+ * <li>skips the write when the text ends up the same as what was saved 
+ * (compared by a hash kept in memory, so the old body is never read back)</li>
+ * </ul>
+ * The writes themselves are done in the background by the repository. 
+ * Everything in here runs on the UI thread.
+ * 
+ * @author jrymal
+ *
+ */
+public class AutoSaver implements TextWatcher {
+
+	/** How long the typing has to pause before a save */
+	private static final long DEBOUNCE_MILLIS = 2000;
+	
+	/** The longest a change waits to be saved while the typing goes on */
+	private static final long MAX_DELAY_MILLIS = 10000;
+	
+	private final NoteRepository mNotes;
+	private final AtomicLong mRowId;
+	private final EditText mBodyText;
+	private final Handler mHandler = new Handler();
+	
+	/** true when the text changed since the last save */
+	private boolean mDirty;
+	
+	/** When the text first changed after the last save */
+	private long mDirtySince;
+	
+	/** true while the body is loading, nothing is saved then */
+	private boolean mSuspended;
+	
+	/** The hash of the body as it is in the DB */
+	private long mSavedHash = ContentHash.of("");
+	
+	private final Runnable mSave = new Runnable() {
+		public void run() {
+			flush();
+		}
+	};
+	
+	/**
+	 * @param notes where the note is saved
+	 * @param rowId the id of the note (0 until it is created)
+	 * @param bodyText the text box to watch
+	 */
+	public AutoSaver(NoteRepository notes, AtomicLong rowId, EditText bodyText) {
+		mNotes = notes;
+		mRowId = rowId;
+		mBodyText = bodyText;
+		
+		mBodyText.addTextChangedListener(this);
+	}
+	
+	/**
+	 * Records what is in the DB (call this after the loaded body is placed 
+	 * in the text box)
+	 * 
+	 * @param body the body as it is in the DB
+	 */
+	public void setSaved(String body) {
+		mSavedHash = ContentHash.of(body);
+		mDirty = false;
+		mHandler.removeCallbacks(mSave);
+	}
+	
+	/**
+	 * Records what is in the DB but keeps the text box dirty (it holds 
+	 * text that must not be replaced by the loaded body)
+	 * 
+	 * @param body the body as it is in the DB
+	 */
+	public void setSavedKeepingEdits(String body) {
+		mSavedHash = ContentHash.of(body);
+	}
+	
+	/**
+	 * @return true if the text changed since the last save
+	 */
+	public boolean isDirty() {
+		return mDirty;
+	}
+	
+	/**
+	 * Stops the saves (while the body is still loading, a save would 
+	 * replace the note with what is in the text box)
+	 */
+	public void suspend() {
+		mSuspended = true;
+		mHandler.removeCallbacks(mSave);
+	}
+	
+	/**
+	 * Lets the saves go on, a change made meanwhile is saved after the 
+	 * usual pause
+	 */
+	public void resume() {
+		mSuspended = false;
+		
+		if (mDirty) {
+			mHandler.removeCallbacks(mSave);
+			mHandler.postDelayed(mSave, DEBOUNCE_MILLIS);
+		}
+	}
+	
+	/**
+	 * Saves now if there is anything to save. The write happens in the 
+	 * background, this returns right away. Nothing is saved while the 
+	 * saves are suspended (the change stays pending).
+	 */
+	public void flush() {
+		mHandler.removeCallbacks(mSave);
+		
+		if (!mDirty || mSuspended) {
+			return;
+		}
+		mDirty = false;
+		
+		/* Finds the text without leading and following whitespace and 
+		 * hashes it in place */
+		Editable text = mBodyText.getText();
+		int start = BodyText.trimStart(text);
+		int end = BodyText.trimEnd(text, start);
+		long hash = ContentHash.of(text, start, end);
+		
+		/* If the text is back to what was saved, there is no need to edit 
+		 * anything or change the time stamp (nor to copy it out) */
+		if (hash == mSavedHash) {
+			return;
+		}
+		mSavedHash = hash;
+		
+		/* the one copy of the text a save makes */
+		String body = TextUtils.substring(text, start, end);
+		
+		/* An empty body deletes the note */
+		mNotes.saveNote(mRowId, body, new NoteRepository.Callback<Long>() {
+			@Override
+			public void onResult(Long rowId) {
+			}
+			
+			@Override
+			public void onError(Exception ex) {
+				super.onError(ex);
+				
+				/* try again on the next save */
+				mDirty = true;
+				mSavedHash = 0;
+			}
+		});
+	}
+	
+	/**
+	 * Drops a pending save (without saving)
+	 */
+	public void cancel() {
+		mHandler.removeCallbacks(mSave);
+		mDirty = false;
+	}
+
+	public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+	}
+
+	public void onTextChanged(CharSequence s, int start, int before, int count) {
+		long now = SystemClock.uptimeMillis();
+		
+		if (!mDirty) {
+			mDirty = true;
+			mDirtySince = now;
+		}
+		
+		/* Push the save back until the typing pauses, but not forever */
+		mHandler.removeCallbacks(mSave);
+		mHandler.postAtTime(mSave, Math.min(now + DEBOUNCE_MILLIS, 
+				mDirtySince + MAX_DELAY_MILLIS));
+	}
+
+	public void afterTextChanged(Editable s) {
+	}
+}
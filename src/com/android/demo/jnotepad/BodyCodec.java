@@ -0,0 +1,112 @@
+package com.android.demo.jnotepad;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import android.database.SQLException;
+
+/**
+ * Compresses the long bodies (or chunks of them) before they are stored.
+ * A compressed body is the deflated UTF-8 of the text, stored as a blob
+ * with CODEC_DEFLATE next to it. Short text is left alone, it would not
+ * get much smaller and costs a decompression on every read.
+ *
+ * This only shrinks the notes table. The full text index (FTS3 on API 8)
+ * keeps an uncompressed copy of every body, which then takes up most of
+ * the space of a long note, see NotesDbAdapter.measureBodyStorage().
+ *
+ * @author jrymal
+ *
+ */
+final class BodyCodec {
+
+	/** How a body (or a chunk) is stored */
+	static final int CODEC_TEXT = 0;
+	static final int CODEC_DEFLATE = 1;
+
+	/** Text shorter than this (in characters) is stored as is */
+	static final int COMPRESS_THRESHOLD = 2 * 1024;
+
+	private static final String UTF_8 = "UTF-8";
+
+	private static final int BUFFER_SIZE = 8 * 1024;
+
+	private BodyCodec() {
+	}
+
+	/**
+	 * @param text a body or a chunk of one
+	 * @return the compressed text, or null if it is better stored as text
+	 */
+	static byte[] compress(String text) {
+		if (text.length() < COMPRESS_THRESHOLD) {
+			return null;
+		}
+
+		byte[] utf8 = toUtf8(text);
+		Deflater deflater = new Deflater();
+
+		try {
+			deflater.setInput(utf8);
+			deflater.finish();
+
+			ByteArrayOutputStream out = new ByteArrayOutputStream(utf8.length / 2);
+			byte[] buffer = new byte[BUFFER_SIZE];
+
+			while (!deflater.finished()) {
+				out.write(buffer, 0, deflater.deflate(buffer));
+			}
+
+			/* Some text (already compressed, random) does not shrink */
+			return out.size() < utf8.length ? out.toByteArray() : null;
+		} finally {
+			deflater.end();
+		}
+	}
+
+	/**
+	 * @param compressed what compress() returned
+	 * @return the text
+	 * @throws SQLException if the data is not what compress() makes (the DB
+	 *         is damaged)
+	 */
+	static String decompress(byte[] compressed) {
+		Inflater inflater = new Inflater();
+
+		try {
+			inflater.setInput(compressed);
+
+			ByteArrayOutputStream out = new ByteArrayOutputStream(compressed.length * 3);
+			byte[] buffer = new byte[BUFFER_SIZE];
+
+			while (!inflater.finished()) {
+				int inflated = inflater.inflate(buffer);
+
+				if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					throw new SQLException("compressed body is cut short");
+				}
+				out.write(buffer, 0, inflated);
+			}
+			return new String(out.toByteArray(), UTF_8);
+		} catch (DataFormatException ex) {
+			throw new SQLException("compressed body is damaged: " + ex.getMessage());
+		} catch (UnsupportedEncodingException ex) {
+			/* every VM has UTF-8 */
+			throw new IllegalStateException(ex);
+		} finally {
+			inflater.end();
+		}
+	}
+
+	private static byte[] toUtf8(String text) {
+		try {
+			return text.getBytes(UTF_8);
+		} catch (UnsupportedEncodingException ex) {
+			/* every VM has UTF-8 */
+			throw new IllegalStateException(ex);
+		}
+	}
+}
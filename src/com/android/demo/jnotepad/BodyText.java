@@ -0,0 +1,82 @@
+package com.android.demo.jnotepad;
+
+import android.text.TextUtils;
+
+/**
+ * Works on the text of a note where it is (usually the Editable of the
+ * text box) instead of copying it out first. The text box keeps the body
+ * in a gap buffer, so typing or appending to it is cheap, but every
+ * toString() or trim() is a full copy of a note that may be megabytes
+ * long. These find the trimmed part of the text by index and copy at
+ * most once.
+ *
+ * @author jrymal
+ *
+ */
+public final class BodyText {
+
+	private BodyText() {
+	}
+
+	/**
+	 * @return the index of the first character that is not whitespace
+	 *         (the length if there is none)
+	 */
+	public static int trimStart(CharSequence text) {
+		int length = text.length();
+		int start = 0;
+
+		/* the same test String.trim() uses */
+		while (start < length && text.charAt(start) <= ' ') {
+			start++;
+		}
+		return start;
+	}
+
+	/**
+	 * @return the index after the last character that is not whitespace
+	 *         (never before start)
+	 */
+	public static int trimEnd(CharSequence text, int start) {
+		return trimEnd(text, start, text.length());
+	}
+
+	/**
+	 * @return the index after the last character before end that is not
+	 *         whitespace (never before start)
+	 */
+	private static int trimEnd(CharSequence text, int start, int end) {
+		while (end > start && text.charAt(end - 1) <= ' ') {
+			end--;
+		}
+		return end;
+	}
+
+	/**
+	 * The same as text.toString().trim() but with a single copy
+	 *
+	 * @param text the text to trim
+	 * @return the text without leading and following whitespace
+	 */
+	public static String trim(CharSequence text) {
+		int start = trimStart(text);
+
+		return TextUtils.substring(text, start, trimEnd(text, start));
+	}
+
+	/**
+	 * Builds a title from the start of the text, only the start is looked
+	 * at
+	 *
+	 * @param text the text of the note
+	 * @param maxLength the longest the title can be
+	 * @return up to maxLength characters from the start of the trimmed text,
+	 *         trimmed again
+	 */
+	public static String subject(CharSequence text, int maxLength) {
+		int start = trimStart(text);
+		int end = Math.min(text.length(), start + maxLength);
+
+		return TextUtils.substring(text, start, trimEnd(text, start, end));
+	}
+}
@@ -0,0 +1,94 @@
+package com.android.demo.jnotepad;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.List;
+
+/**
+ * A 64 bit hash of the text of a note (FNV-1a over the characters). It is 
+ * used to tell if a body changed without keeping or reading back the old 
+ * one. At 64 bits two different bodies of the same note won't collide in 
+ * practice.
+ * 
+ * @author jrymal
+ *
+ */
+public final class ContentHash {
+
+	private static final long OFFSET_BASIS = 0xcbf29ce484222325L;
+	private static final long PRIME = 0x100000001b3L;
+	
+	/** The characters read at a time from a stream */
+	private static final int BUFFER_SIZE = 4 * 1024;
+	
+	private ContentHash() {
+	}
+	
+	/**
+	 * @param text the text to hash
+	 * @return the hash of the text
+	 */
+	public static long of(CharSequence text) {
+		return of(text, 0, text.length());
+	}
+	
+	/**
+	 * Hashes part of the text without copying it out
+	 * 
+	 * @param text the text to hash
+	 * @param start the first character hashed
+	 * @param end the index after the last character hashed
+	 * @return the hash of that part of the text (the same as of() on it)
+	 */
+	public static long of(CharSequence text, int start, int end) {
+		long hash = OFFSET_BASIS;
+		
+		for (int i = start; i < end; i++) {
+			hash ^= text.charAt(i);
+			hash *= PRIME;
+		}
+		return hash;
+	}
+	
+	/**
+	 * Hashes text that is in parts (the same as of() on the parts put 
+	 * together)
+	 * 
+	 * @param parts the text, first part first
+	 * @return the hash of the text
+	 */
+	public static long of(List<? extends CharSequence> parts) {
+		long hash = OFFSET_BASIS;
+		
+		for (CharSequence part : parts) {
+			int length = part.length();
+			
+			for (int i = 0; i < length; i++) {
+				hash ^= part.charAt(i);
+				hash *= PRIME;
+			}
+		}
+		return hash;
+	}
+	
+	/**
+	 * Hashes a stream of text a buffer at a time (the same as of() on all 
+	 * of it)
+	 * 
+	 * @param text the text to hash, it is read to the end but not closed
+	 * @return the hash of the text
+	 * @throws IOException if the text can't be read
+	 */
+	public static long of(Reader text) throws IOException {
+		long hash = OFFSET_BASIS;
+		char[] buffer = new char[BUFFER_SIZE];
+		
+		for (int read = text.read(buffer); read >= 0; read = text.read(buffer)) {
+			for (int i = 0; i < read; i++) {
+				hash ^= buffer[i];
+				hash *= PRIME;
+			}
+		}
+		return hash;
+	}
+}
@@ -16,16 +16,19 @@
 
 package com.android.demo.jnotepad;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
 
 import android.app.Activity;
 import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
-import android.database.Cursor;
 import android.os.Bundle;
 import android.speech.RecognizerIntent;
+import android.text.Editable;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuInflater;
@@ -34,6 +37,7 @@ import android.view.View;
 import android.widget.Button;
 import android.widget.EditText;
 
+import com.android.demo.jnotepad.diagnostics.Metrics;
 import com.android.demo.jnotepad.transfers.SDWriter;
 import com.android.demo.jnotepad.transfers.TextSender;
 
@@ -43,10 +47,33 @@ public class EditNote extends Activity {
 	
 	private static final int MAX_SUBJECT_LENGTH = 15;
 	
-    private NotesDbAdapter mDbHelper;
+	/** The saved state key of the id holder of a note that has no id yet */
+	private static final String KEY_ROWID_TOKEN = "rowid_token";
+	
+	private static final Metrics.Timer POPULATE_FIELDS = Metrics.timer("edit.populateFields");
+	private static final Metrics.Timer SAVE_STATE = Metrics.timer("edit.saveState");
+	private static final Metrics.Timer SAVE_TO_SD_CARD = Metrics.timer("export.sdCard");
+	
+    private NoteRepository mNotes;
     
     private EditText mBodyText;
-    private Long mRowId;
+    
+    /** The id of the note (0 if it is not in the DB yet). This is also 
+     * updated from the writer thread when a new note gets its id. */
+    private AtomicLong mRowId = new AtomicLong(0);
+    
+    /** The token mRowId is held under while the note has no id (see 
+     * onSaveInstanceState()) */
+    private String mRowIdToken;
+    
+    /** Set once the body has been loaded, so it is not loaded over edits */
+    private boolean mLoaded;
+    
+    /** true from asking for the body until it is on screen */
+    private boolean mLoading;
+    
+    /** Saves the text as it is typed */
+    private AutoSaver mAutoSaver;
 
     /**
      * Called on the creation of the Intent
@@ -55,10 +82,8 @@ public class EditNote extends Activity {
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
 
-        if (mDbHelper == null) {
-            mDbHelper = new NotesDbAdapter(this);
-
-            mDbHelper.open();
+        if (mNotes == null) {
+            mNotes = new NoteRepository(this);
         }
         
         /* set the layout */
@@ -73,23 +98,39 @@ public class EditNote extends Activity {
         Button deleteButton = (Button) findViewById(R.id.edit_layout_delete);
         Button dictateButton = (Button) findViewById(R.id.edit_layout_dictate);
 
-        mRowId = null;
+        Long rowId = null;
+        AtomicLong held = null;
         
         /*  see if we have a old message stored (usually from a back or home 
          * button press) */
         if (savedInstanceState != null) {
-            mRowId = (Long) savedInstanceState.getSerializable(NotesDbAdapter.KEY_ROWID);
+            rowId = (Long) savedInstanceState.getSerializable(NotesDbAdapter.KEY_ROWID);
+            
+            /* A new note, its create may not have run yet: save into the 
+             * same holder so the note gets created once */
+            held = NoteRepository.takeRowId(savedInstanceState.getString(KEY_ROWID_TOKEN));
+            
+            if (held != null) {
+            	mRowId = held;
+            }
         }
         
         /* No message there */
-        if (mRowId == null || mRowId == 0) {
+        if (held == null && (rowId == null || rowId == 0)) {
         	/* check to see if we are editing an old message */
             Bundle extras = getIntent().getExtras();
             
             if (extras != null) {
-                mRowId = extras.getLong(NotesDbAdapter.KEY_ROWID);
+                rowId = extras.getLong(NotesDbAdapter.KEY_ROWID);
             }
         }
+        
+        if (rowId != null && rowId != 0) {
+            mRowId.set(rowId);
+        }
+        
+        /* saves the changes while typing (and whenever saveState is called) */
+        mAutoSaver = new AutoSaver(mNotes, mRowId, mBodyText);
 
         /* Populate the body object with old test (if there is any) */
         populateFields();
@@ -132,13 +173,12 @@ public class EditNote extends Activity {
     }
 
     /**
-     * Clean up any objects the need to be cleaned
+     * Clean up any objects the need to be cleaned before finishing (the 
+     * repository is closed in onDestroy(), however the editor is left)
      */
     private void cleanUp() {
-    	if (mDbHelper != null){
-            mDbHelper.close();
-            mDbHelper = null;
-    	}
+    	/* anything not saved by now is dropped */
+    	mAutoSaver.cancel();
     }
     
     /**
@@ -146,8 +186,8 @@ public class EditNote extends Activity {
      * menu press)
      */
     private void deleteNote(){
-    	if (mRowId != null && mRowId != 0) {
-    	    mDbHelper.deleteNote(mRowId);
+    	if (mNotes != null) {
+    	    mNotes.deleteNote(mRowId, null);
     	}
     	
     	/* be a good citizen and clean up */
@@ -183,36 +223,44 @@ public class EditNote extends Activity {
     }
   
     /**
-     * Pulls the data from the DB and places it on screen (in the text box)
+     * Pulls the data from the DB and places it on screen (in the text box). 
+     * The body is loaded in the background and only once, so coming back to 
+     * the editor does not overwrite what is on screen.
      */
     private void populateFields() {
     	/* Ensure that we are still ok to do stuff with the db*/
-    	if (mDbHelper == null){
+    	if (mNotes == null){
     		Log.e("NoteEdit","db is closed");
     		return;
     	}
     	
-        if (mRowId != null && mRowId != 0) {
+        if (mRowId.get() != 0) {
         	/* This is an edit request */
         	
-            Cursor note = mDbHelper.fetchNote(mRowId);
-            
-            if (note != null)
-            {
-
-            	/* Set the text in the message body object*/
-                mBodyText.setText(note.getString(
-                    note.getColumnIndexOrThrow(NotesDbAdapter.KEY_BODY)));
-                
-                /* Set the position of the cursor when loading, otherwise the 
-                 * cursor is set to the beginning of the string */
-                mBodyText.setSelection(mBodyText.getText().length());
-                
-                /* Set the delete button to enabled (As this message is in the 
-                 * DB, we CAN delete it) */
-                Button deleteButton = (Button) findViewById(R.id.edit_layout_delete);
-                setButtonPressable(deleteButton, true);
-            }
+        	if (!mLoaded) {
+        		mLoaded = true;
+        		
+        		/* Nothing can be typed or saved before the body is there, a 
+        		 * save would replace the note with what was typed */
+        		setLoading(true);
+        		
+        		/* timed until the body is on screen */
+        		final long start = Metrics.start();
+        		
+        		mNotes.fetchNoteBody(mRowId.get(), new NoteRepository.Callback<String>() {
+        			@Override
+        			public void onResult(String body) {
+        				showBody(body);
+        				POPULATE_FIELDS.stop(start);
+        			}
+        			
+        			@Override
+        			public void onError(Exception ex) {
+        				super.onError(ex);
+        				setLoading(false);
+        			}
+        		});
+        	}
         } else {
         	
             /* Set the delete button to disabled (As this message is not in the 
@@ -223,7 +271,57 @@ public class EditNote extends Activity {
         
         // ensure that we can listen before giving the user this option
         Button dictateButton = (Button) findViewById(R.id.edit_layout_dictate);
-        setButtonPressable(dictateButton, canListen());
+        setButtonPressable(dictateButton, !mLoading && canListen());
+    }
+    
+    /**
+     * Locks the editor (the text box, the dictation and the saves) while 
+     * the body is loading
+     */
+    private void setLoading(boolean loading) {
+    	mLoading = loading;
+    	mBodyText.setEnabled(!loading);
+    	
+    	if (loading) {
+    		mAutoSaver.suspend();
+    	} else {
+    		mAutoSaver.resume();
+    	}
+    	
+        Button dictateButton = (Button) findViewById(R.id.edit_layout_dictate);
+        setButtonPressable(dictateButton, !loading && canListen());
+    }
+
+    /**
+     * Places a loaded body on screen
+     * 
+     * @param body the body from the DB (null if the note was not found)
+     */
+    private void showBody(String body) {
+        if (body != null) {
+        	if (mAutoSaver.isDirty()) {
+        		/* The text box got its text meanwhile (restored after the 
+        		 * phone turned), that is newer than the load */
+        		mAutoSaver.setSavedKeepingEdits(body);
+        	} else {
+        		/* Set the text in the message body object*/
+        		mBodyText.setText(body);
+
+        		/* Set the position of the cursor when loading, otherwise the 
+        		 * cursor is set to the beginning of the string */
+        		mBodyText.setSelection(mBodyText.getText().length());
+
+        		/* This is what is in the DB, there is nothing to save yet */
+        		mAutoSaver.setSaved(body);
+        	}
+        	
+        	/* Set the delete button to enabled (As this message is in the 
+        	 * DB, we CAN delete it) */
+        	Button deleteButton = (Button) findViewById(R.id.edit_layout_delete);
+        	setButtonPressable(deleteButton, true);
+        }
+        
+        setLoading(false);
     }
 
     /**
@@ -249,12 +347,39 @@ public class EditNote extends Activity {
         /* Save the data in the DB */
         saveState();
         
-        /* If this is a edited message, store the rowId in the state object */
-        if (mRowId != null && mRowId != 0) {
-            outState.putSerializable(NotesDbAdapter.KEY_ROWID, mRowId);
+        /* If this is a edited message, store the rowId in the state object. 
+         * A new note may only be queued for creation, so the holder its id 
+         * will be set in is kept for the activity that replaces this one. */
+        if (mRowId.get() != 0) {
+            outState.putSerializable(NotesDbAdapter.KEY_ROWID, mRowId.get());
+        } else {
+        	if (mRowIdToken == null) {
+        		mRowIdToken = NoteRepository.holdRowId(mRowId);
+        	}
+        	outState.putString(KEY_ROWID_TOKEN, mRowIdToken);
         }
     }
     
+    /**
+     * Called when the activity goes away, for good or to be recreated
+     */
+    @Override
+    protected void onDestroy() {
+    	super.onDestroy();
+    	
+    	/* Nobody comes back for the id holder */
+    	if (isFinishing()) {
+    		NoteRepository.takeRowId(mRowIdToken);
+    	}
+    	
+    	/* The saves queued so far still go through, the database is closed 
+    	 * a while after the last repository is */
+    	if (mNotes != null) {
+    		mNotes.close();
+    		mNotes = null;
+    	}
+    }
+    
     /**
      * Called when the application is paused. This seems to happen quite 
      * often and in cases where you wouldn't expect.
@@ -274,55 +399,19 @@ public class EditNote extends Activity {
         populateFields();
     }
     
-    /* Saves the current text to the DB */
+    /* Saves the current text to the DB (in the background, and only if 
+     * it changed) */
     private void saveState() {
     	
-    	if (mDbHelper == null){
+    	if (mNotes == null){
     		Log.e("NoteEdit","db is closed");
     		return;
     	}    	
     	
-    	/* Pulls the text out and removes leading and following whitespace */
-        String body = getBody();
-        
-        /* note that android version 8 does not (apparently) have isEmpty() 
-         * in the string class. Later versions do. */
-        if (body.length() == 0) {
-        	
-            /* They've committed an empty string, we assume they want to 
-             * delete the message */
-        	if (mRowId != null && mRowId != 0) {
-        		mDbHelper.deleteNote(mRowId);
-        	}
-        	
-        } else if (mRowId == null || mRowId == 0) {
-        	
-        	/* This is a new note and we need an ID number for the row*/
-            long id = mDbHelper.createNote(body);
-            
-            if (id > 0) {
-            	/* Keep the id around */
-                mRowId = id;
-            }
-        } else {
-        	
-        	/* This was an edit, just save the data */
-        	Cursor note = mDbHelper.fetchNote(mRowId);
-        	
-            if (note != null)
-            {
-            	/* Get the string from the DB for comparison */
-                String origStr = note.getString(
-                    note.getColumnIndexOrThrow(NotesDbAdapter.KEY_BODY));
-
-                /* If the two strings are the same, there is no need to edit 
-                 * anything or change the time stamp */
-                if (!origStr.equals(body)){
-                	mDbHelper.updateNote(mRowId, body);
-                }
-                
-            }
-        }
+    	/* An empty body deletes the note, an unchanged one is left alone. */
+    	long start = Metrics.start();
+        mAutoSaver.flush();
+        SAVE_STATE.stop(start);
     } 
     
     /**
@@ -341,7 +430,7 @@ public class EditNote extends Activity {
         MenuItem delete = menu.findItem(R.id.edit_menu_delete);
         
         if (delete != null){
-        	delete.setEnabled(mRowId != null && mRowId != 0);
+        	delete.setEnabled(mRowId.get() != 0);
         }
         
         return true;        
@@ -377,25 +466,49 @@ public class EditNote extends Activity {
     }
 
     /**
-     * Handles the call for saving to the SD card
+     * Handles the call for saving to the SD card. The file is written on a 
+     * reader thread of the repository.
      */
 	private void saveToSDCard() {
-		
-        String body = getBody();
-        String fileName = buildSubject(body);
-        
-        if (fileName.length() == 0){
-        	fileName = getResources().getString(R.string.defaultFileName);
-        }
-		
-		try {
-			SDWriter sdw = new SDWriter("", fileName);
-			sdw.addData(body);
-			sdw.close();
-		} catch (IOException ex) {
-			Log.e("Could not write to SD card", ex.getMessage());
+		if (mNotes == null){
+			Log.e("NoteEdit","db is closed");
+			return;
 		}
 		
+        /* The text box can only be read on the UI thread, the text is 
+         * copied out once here */
+        final String body = getBody();
+        String subject = BodyText.subject(body, MAX_SUBJECT_LENGTH);
+        final String fileName = subject.length() == 0 
+        		? getResources().getString(R.string.defaultFileName) : subject;
+		
+        mNotes.runInBackground(new Callable<File>() {
+        	public File call() throws IOException {
+        		long start = Metrics.start();
+        		try {
+        			SDWriter sdw = new SDWriter("", fileName);
+        			try {
+        				sdw.addData(body);
+        			} catch (IOException ex) {
+        				sdw.abort();
+        				throw ex;
+        			}
+        			sdw.close();
+        			return sdw.getFile();
+        		} finally {
+        			SAVE_TO_SD_CARD.stop(start);
+        		}
+        	}
+        }, new NoteRepository.Callback<File>() {
+        	@Override
+        	public void onResult(File file) {
+        	}
+        	
+        	@Override
+        	public void onError(Exception ex) {
+        		Log.e("Could not write to SD card", ex.getMessage());
+        	}
+        });
 	}
 	
 	/**
@@ -410,7 +523,7 @@ public class EditNote extends Activity {
 		TextSender ea = new TextSender();
 		
         String body = getBody();
-        String subject = buildSubject(body);
+        String subject = BodyText.subject(body, MAX_SUBJECT_LENGTH);
 		
         ea.setTitle(subject);
 		ea.setBody(body);
@@ -421,28 +534,12 @@ public class EditNote extends Activity {
 	}
 
 	/**
-	 * Creates a title or a Subject line for the note
-	 * 
-	 * @param body the body of the note
-	 * @return an abbreviated version of the body string
-	 */
-	private String buildSubject(String body) {
-		String trimBody = body.trim();
-		
-		int maxLen = Math.min(MAX_SUBJECT_LENGTH, trimBody.length());
-		
-		String subString = trimBody.substring(0, maxLen).trim();
-		
-		return subString;
-	}
-
-	/**
-	 * cleans up the body string and then returns it
+	 * cleans up the body string and then returns it (copies the text once)
 	 * 
 	 * @return
 	 */
 	private String getBody() {
-		return mBodyText.getText().toString().trim();
+		return BodyText.trim(mBodyText.getText());
 	}
 	
 	/**
@@ -498,14 +595,13 @@ public class EditNote extends Activity {
             
             if (results != null && results.size() > 0) {
             	
-            	StringBuffer tempBuf = new StringBuffer();
-            	tempBuf.append(mBodyText.getText());
-            	if (tempBuf.length() > 0){
-            	    tempBuf.append(' ');
+            	/* Append in place, the text box keeps a gap buffer so this 
+            	 * does not copy what is already there */
+            	Editable text = mBodyText.getText();
+            	if (text.length() > 0){
+            	    text.append(' ');
             	}
-            	tempBuf.append(results.get(0));
-            	
-    		    mBodyText.setText(tempBuf.toString());
+            	text.append(results.get(0));
     		    
     		    saveState();
             }
@@ -16,10 +16,18 @@
 
 package com.android.demo.jnotepad;
 
+import java.io.File;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
 import android.app.ListActivity;
 import android.content.Intent;
-import android.database.Cursor;
 import android.os.Bundle;
+import android.os.Environment;
+import android.os.SystemClock;
+import android.text.Editable;
+import android.text.TextWatcher;
 import android.util.Log;
 import android.view.ContextMenu;
 import android.view.ContextMenu.ContextMenuInfo;
@@ -27,20 +35,71 @@ import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
+import android.widget.AbsListView;
+import android.widget.AbsListView.OnScrollListener;
 import android.widget.AdapterView.AdapterContextMenuInfo;
+import android.widget.EditText;
 import android.widget.ListView;
-import android.widget.SimpleCursorAdapter;
+import android.widget.Toast;
+
+import com.android.demo.jnotepad.diagnostics.Metrics;
+import com.android.demo.jnotepad.diagnostics.MetricsActivity;
+import com.android.demo.jnotepad.transfers.NoteExporter;
+import com.android.demo.jnotepad.transfers.NoteImporter;
 
 public class JNotepad extends ListActivity {
     
-    private NotesDbAdapter mDbHelper;
-    private Cursor mNotesCursor;
+	/** The number of notes loaded at a time */
+	private static final int PAGE_SIZE = 50;
+	
+	/** Start loading the next page when this close to the end of the list */
+	private static final int PAGE_PREFETCH = 10;
+	
+	/** The most notes a search shows */
+	private static final int SEARCH_LIMIT = 100;
+	
+	/** The preferences the exports keep their state in */
+	private static final String EXPORT_PREFS = "export";
+	
+	private static final Metrics.Timer FILL_DATA = Metrics.timer("list.fillData");
+	
+    private NoteRepository mNotes;
+    private NoteListAdapter mNotesAdapter;
+    
+    /** true while a page is being loaded */
+    private boolean mLoadingPage;
+    
+    /** Bumped on every reload so pages of an older list are dropped */
+    private int mListGeneration;
+    
+    /** Runs the search box, the list shows all the notes when it is empty */
+    private NoteSearch mSearch;
+    
+    /** The notes selected (through the context menu) for a group delete */
+    private final Set<Long> mSelectedIds = new HashSet<Long>();
+    
+    /** The export that is running (null if there is none) */
+    private NoteExporter mExporter;
+    
+    /** true while an import runs */
+    private boolean mImporting;
+    
+    /** The top of the list, kept for the next start */
+    private ListSnapshot mSnapshot;
+    
+    /** true while the list shows the snapshot instead of the notes read */
+    private boolean mShowingSnapshot;
+    
+    /** When this launch started (uptime), 0 once the notes are shown */
+    private long mLaunchStart;
 
     /** Called when the activity is first created. */
     @Override
     public void onCreate(Bundle savedInstanceState) {
     	super.onCreate(savedInstanceState);
     	
+    	mLaunchStart = NotepadApplication.takeLaunchStart(SystemClock.uptimeMillis());
+    	
     	/* Add a exception handler for everything that isn't handled so we 
     	 * can look at it */
         Thread.setDefaultUncaughtExceptionHandler(new DefaultExceptionHandler());
@@ -48,9 +107,91 @@ public class JNotepad extends ListActivity {
         /* Set the view panel for the initial application */
         setContentView(R.layout.list_layout);
         
-        /* Open the db helper object*/
-        mDbHelper = new NotesDbAdapter(this);
-        mDbHelper.open();
+        /* Open the repository (the DB itself is opened in the background) */
+        mNotes = new NoteRepository(this);
+        
+        /* After an upgrade the old notes are converted in the background, 
+         * show how far along that is and reload once it is done */
+        mNotes.setMigrationListener(new NotesDbAdapter.MigrationListener() {
+			
+        	public void onMigrationProgress(int version, int done, int total) {
+				if (done < total) {
+					setTitle(getString(R.string.upgrading_notes, done * 100 / total));
+				} else {
+					setTitle(R.string.app_name);
+					fillData();
+				}
+			}
+		});
+        
+        /* The list keeps its adapter, the pages are added to it */
+        mNotesAdapter = new NoteListAdapter(this, mSelectedIds);
+        setListAdapter(mNotesAdapter);
+        
+        /* Draw the rows of the last run right away, the DB is still being 
+         * opened. They are swapped for the notes read by fillData(). */
+        mSnapshot = new ListSnapshot(this);
+        List<NoteSummary> snapshot = mSnapshot.read();
+        
+        if (!snapshot.isEmpty()) {
+        	mShowingSnapshot = true;
+        	mNotesAdapter.setNotes(snapshot, Integer.MAX_VALUE);
+        	reportStartup("snapshot");
+        }
+        
+        /* Whatever writes a note (the editor, a delete, an import), only 
+         * the rows it touched are updated */
+        mNotes.setChangeListener(new NotesDbAdapter.ChangeListener() {
+			
+        	public void onNotesChanged(long[] inserted, long[] updated, long[] deleted) {
+				applyChanges(inserted, updated, deleted);
+			}
+		});
+        
+        /* The list shows the search results while there is a search */
+        mSearch = new NoteSearch(mNotes, SEARCH_LIMIT, new NoteSearch.Listener() {
+			
+        	public void onSearchResults(List<NoteSummary> notes) {
+        		/* drops any page that is still loading */
+        		mListGeneration++;
+        		mLoadingPage = false;
+        		
+				/* the results are never paged, so there is no more */
+				mNotesAdapter.setNotes(notes, Integer.MAX_VALUE);
+			}
+			
+        	public void onSearchCleared() {
+				fillData();
+			}
+		});
+        
+        EditText searchText = (EditText) findViewById(R.id.list_layout_search);
+        searchText.addTextChangedListener(new TextWatcher() {
+			
+        	public void onTextChanged(CharSequence s, int start, int before, int count) {
+			}
+			
+        	public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+			}
+			
+        	public void afterTextChanged(Editable s) {
+				mSearch.setQuery(s.toString());
+			}
+		});
+        
+        /* Load the next page as the end of the list comes into view */
+        getListView().setOnScrollListener(new OnScrollListener() {
+			
+        	public void onScrollStateChanged(AbsListView view, int scrollState) {
+			}
+			
+        	public void onScroll(AbsListView view, int firstVisibleItem,
+					int visibleItemCount, int totalItemCount) {
+				if (firstVisibleItem + visibleItemCount >= totalItemCount - PAGE_PREFETCH) {
+					loadNextPage();
+				}
+			}
+		});
         
         /* Perform the initial fill of data from the DB*/
         fillData();
@@ -61,39 +202,144 @@ public class JNotepad extends ListActivity {
     }
 
     /**
-     * handles reading from the DB and placing the notes into the list pane
+     * handles reading from the DB and placing the notes into the list pane. 
+     * This reloads as many notes as are loaded now (at least one page), or 
+     * runs the search again if there is one. The query runs in the 
+     * background and the list is updated when it is done.
      */
     private void fillData() {
-    	/* retrieves all the notes from the DB */
-    	mNotesCursor = mDbHelper.fetchAllNotes();
-
-        /* Create an array to specify the fields we want to display in the 
-         * list (only TITLE) */
-        String[] from = new String[]{NotesDbAdapter.KEY_BODY, 
-        		NotesDbAdapter.KEY_DATETIME};
-
-        /* and an array of the fields we want to bind those fields to (in 
-         * this case just text1) */
-        int[] to = new int[]{R.id.list_layout_row_preview, R.id.list_layout_row_date};
-
-        /* Ensure that we are not running into a null object */
-        if (mNotesCursor == null) {
-        	Log.e("null", "notesCursor");
-        	return;
-        }
-        
-        /* Now create a simple cursor adapter and set it to display */
-        SimpleCursorAdapter notes = 
-            new SimpleCursorAdapter(this, R.layout.list_layout_row, mNotesCursor, from, to);
-        
-        /* This places the cursor data into the list (Note that we are in a 
-         * List-based activity. */
-        setListAdapter(notes);
-        
-        /* I attempted to keep the notesCursor here as a limited scope 
-         * variable. I attempted to close it (close()) but if I did that, 
-         * we ended up with an empty list. I don't quite understand this. */
-        
+    	if (mSearch.isSearching()) {
+    		mSearch.refresh();
+    		return;
+    	}
+    	
+    	final int limit = Math.max(PAGE_SIZE, mNotesAdapter.getCount());
+    	final int generation = ++mListGeneration;
+    	final long start = Metrics.start();
+    	
+    	mLoadingPage = true;
+    	
+    	/* retrieves the first notes from the DB */
+    	mNotes.fetchNotesPage(null, limit, new NoteRepository.Callback<List<NoteSummary>>() {
+    		@Override
+    		public void onResult(List<NoteSummary> notes) {
+    			if (generation == mListGeneration) {
+    				mLoadingPage = false;
+    				mShowingSnapshot = false;
+    				mNotesAdapter.setNotes(notes, limit);
+    				FILL_DATA.stop(start);
+    				
+    				if (mLaunchStart != 0) {
+    					reportStartup("notes");
+    					mLaunchStart = 0;
+    				}
+    			}
+    		}
+    		
+    		@Override
+    		public void onError(Exception ex) {
+    			super.onError(ex);
+    			mLoadingPage = false;
+    		}
+    	});
+    }
+
+    /**
+     * Updates the list for the notes that were written. The rows of the 
+     * changed notes are read again and put in place, the deleted ones are 
+     * dropped. Many changes at once (an import) reload the list instead.
+     */
+    private void applyChanges(long[] inserted, long[] updated, long[] deleted) {
+    	for (long rowId : deleted) {
+    		mSelectedIds.remove(rowId);
+    	}
+    	
+    	if (mSearch.isSearching()) {
+    		/* the matches of a changed note can't be worked out here */
+    		mSearch.refresh();
+    		return;
+    	}
+    	
+    	int changed = inserted.length + updated.length;
+    	
+    	if (changed > PAGE_SIZE) {
+    		fillData();
+    		return;
+    	}
+    	
+    	mNotesAdapter.removeNotes(deleted);
+    	
+    	if (changed == 0) {
+    		return;
+    	}
+    	
+    	long[] rowIds = new long[changed];
+    	
+    	System.arraycopy(inserted, 0, rowIds, 0, inserted.length);
+    	System.arraycopy(updated, 0, rowIds, inserted.length, updated.length);
+    	
+    	final int generation = mListGeneration;
+    	
+    	mNotes.fetchNotes(rowIds, new NoteRepository.Callback<List<NoteSummary>>() {
+    		@Override
+    		public void onResult(List<NoteSummary> notes) {
+    			/* a reload started since has them already */
+    			if (generation == mListGeneration && !mSearch.isSearching()) {
+    				mNotesAdapter.putNotes(notes);
+    			}
+    		}
+    	});
+    }
+
+    /**
+     * Logs how long it took from the launch to the list showing something 
+     * (and keeps it as the startup.<content> timer). The time is taken once 
+     * the rows are laid out, which is about when they are on the screen.
+     * 
+     * @param content what the list shows (the snapshot or the notes)
+     */
+    private void reportStartup(final String content) {
+    	final long start = mLaunchStart;
+    	
+    	getListView().post(new Runnable() {
+    		public void run() {
+    			long millis = SystemClock.uptimeMillis() - start;
+    			
+    			Metrics.timer("startup." + content).recordMillis(millis);
+    			Log.i("jnotepad", "launch to first " + content + ": " + millis + " ms");
+    		}
+    	});
+    }
+
+    /**
+     * Loads the page after the last loaded note (if there is one and we are 
+     * not already loading)
+     */
+    private void loadNextPage() {
+    	if (mLoadingPage || !mNotesAdapter.hasMore()) {
+    		return;
+    	}
+    	
+    	final int generation = mListGeneration;
+    	
+    	mLoadingPage = true;
+    	
+    	mNotes.fetchNotesPage(mNotesAdapter.getLastNote(), PAGE_SIZE, 
+    			new NoteRepository.Callback<List<NoteSummary>>() {
+    		@Override
+    		public void onResult(List<NoteSummary> page) {
+    			if (generation == mListGeneration) {
+    				mLoadingPage = false;
+    				mNotesAdapter.appendPage(page, PAGE_SIZE);
+    			}
+    		}
+    		
+    		@Override
+    		public void onError(Exception ex) {
+    			super.onError(ex);
+    			mLoadingPage = false;
+    		}
+    	});
     }
 
     /**
@@ -110,6 +356,24 @@ public class JNotepad extends ListActivity {
         return true;
     }
 
+    /**
+     * Offers to cancel the export while one runs, and to start one 
+     * otherwise
+     */
+    @Override
+    public boolean onPrepareOptionsMenu(Menu menu) {
+    	super.onPrepareOptionsMenu(menu);
+    	
+    	boolean exporting = mExporter != null;
+    	
+    	menu.findItem(R.id.list_menu_export).setVisible(!exporting);
+    	menu.findItem(R.id.list_menu_export_all).setVisible(!exporting);
+    	menu.findItem(R.id.list_menu_cancel_export).setVisible(exporting);
+    	menu.findItem(R.id.list_menu_import).setVisible(!mImporting);
+    	
+    	return true;
+    }
+
     /**
      * When a menu item is selected from the Options Menu, this is called to 
      * handle the event.
@@ -121,6 +385,24 @@ public class JNotepad extends ListActivity {
             case R.id.list_menu_insert:
                 createNote();
                 break;
+            case R.id.list_menu_export:
+            	exportNotes(true);
+            	break;
+            case R.id.list_menu_export_all:
+            	exportNotes(false);
+            	break;
+            case R.id.list_menu_cancel_export:
+            	cancelExport();
+            	break;
+            case R.id.list_menu_import:
+            	importNotes();
+            	break;
+            case R.id.list_menu_merge_duplicates:
+            	mergeDuplicates();
+            	break;
+            case R.id.list_menu_metrics:
+            	startActivity(new Intent(this, MetricsActivity.class));
+            	break;
             default:
                 Log.e("jnotepad", "unhandled menu item:"+Integer.toHexString(item.getItemId())+
                 		" is not "+Integer.toHexString(R.id.list_menu_insert)+" item string:'"+
@@ -141,6 +423,18 @@ public class JNotepad extends ListActivity {
     	
         MenuInflater inflater = getMenuInflater();
         inflater.inflate(R.menu.list_context_menu, menu);
+        
+        /* The select item flips between select and deselect */
+        AdapterContextMenuInfo info = (AdapterContextMenuInfo) menuInfo;
+        
+        if (mSelectedIds.contains(info.id)) {
+        	menu.findItem(R.id.list_context_menu_select).setTitle(
+        			R.string.list_context_menu_deselect_str);
+        }
+        
+        /* Only offer the group delete when there is a group */
+        menu.findItem(R.id.list_context_menu_delete_selected).setVisible(
+        		!mSelectedIds.isEmpty());
     }
 
     /**
@@ -149,17 +443,25 @@ public class JNotepad extends ListActivity {
     @Override
     public boolean onContextItemSelected(MenuItem item) {
     	
+    	/* retrieve that current context information */
+        AdapterContextMenuInfo info = (AdapterContextMenuInfo) item.getMenuInfo();
+        
         switch(item.getItemId()) {
             case R.id.list_context_menu_delete:
-            	/* retrieve that current context information */
-                AdapterContextMenuInfo info = (AdapterContextMenuInfo) item.getMenuInfo();
-                
-                /* delete the note */
-                mDbHelper.deleteNote(info.id);
-                
-                /* reload after the delete */
-                fillData();
+                /* delete the note, its row goes when the delete is done */
+            	mSelectedIds.remove(info.id);
+                mNotes.deleteNote(info.id, null);
                 break;
+            case R.id.list_context_menu_select:
+            	/* flip the selection and redraw the rows */
+            	if (!mSelectedIds.remove(info.id)) {
+            		mSelectedIds.add(info.id);
+            	}
+            	mNotesAdapter.notifyDataSetChanged();
+            	break;
+            case R.id.list_context_menu_delete_selected:
+            	deleteSelectedNotes();
+            	break;
             default:
                 Log.e("jnotepad", "unhandled context menu item:"+Integer.toHexString(item.getItemId())+
                 		" is not "+Integer.toHexString(R.id.list_context_menu_delete)+" item string:'"+
@@ -170,15 +472,171 @@ public class JNotepad extends ListActivity {
         return true;
     }
 
+    /**
+     * Deletes all the selected notes in one batch (one transaction), their 
+     * rows go when it is done.
+     */
+    private void deleteSelectedNotes() {
+    	long[] rowIds = new long[mSelectedIds.size()];
+    	int i = 0;
+    	
+    	for (Long rowId : mSelectedIds) {
+    		rowIds[i++] = rowId;
+    	}
+    	mSelectedIds.clear();
+    	
+    	mNotes.deleteNotes(rowIds, null);
+    }
+
+    /**
+     * Exports the notes into an archive on the SD card in the background. 
+     * The progress is shown in the title.
+     * 
+     * @param incremental true to only export the notes saved since the last 
+     *        export
+     */
+    private void exportNotes(boolean incremental) {
+    	if (mExporter != null) {
+    		return;
+    	}
+    	
+    	final NoteExporter exporter = new NoteExporter(
+    			getSharedPreferences(EXPORT_PREFS, MODE_PRIVATE), incremental, 
+    			new NoteExporter.ProgressListener() {
+    		
+    		public void onExportProgress(int done, int total) {
+    			setTitle(getString(R.string.exporting_notes, done * 100 / total));
+    		}
+    	});
+    	mExporter = exporter;
+    	
+    	mNotes.exportNotes(exporter, new NoteRepository.Callback<File>() {
+    		@Override
+    		public void onResult(File archive) {
+    			exportDone(exporter);
+    			
+    			if (archive != null) {
+    				Toast.makeText(JNotepad.this, getString(R.string.export_done, 
+    						exporter.getExportedCount(), archive.getPath()), 
+    						Toast.LENGTH_LONG).show();
+    			} else if (!exporter.isCancelled()) {
+    				Toast.makeText(JNotepad.this, R.string.export_nothing, 
+    						Toast.LENGTH_SHORT).show();
+    			}
+    		}
+    		
+    		@Override
+    		public void onError(Exception ex) {
+    			super.onError(ex);
+    			exportDone(exporter);
+    			
+    			Toast.makeText(JNotepad.this, R.string.export_failed, 
+    					Toast.LENGTH_LONG).show();
+    		}
+    	});
+    }
+
+    /**
+     * Stops the running export (nothing is written)
+     */
+    private void cancelExport() {
+    	if (mExporter != null) {
+    		mExporter.cancel();
+    		exportDone(mExporter);
+    	}
+    }
+
+    /**
+     * Forgets an export once it is over
+     */
+    private void exportDone(NoteExporter exporter) {
+    	if (mExporter == exporter) {
+    		mExporter = null;
+    		setTitle(R.string.app_name);
+    	}
+    }
+
+    /**
+     * Imports everything in the export directory on the SD card (the 
+     * archives and any text files put there) in the background. The notes 
+     * that are already there are skipped, so the app's own exports add 
+     * nothing.
+     */
+    private void importNotes() {
+    	if (mImporting) {
+    		return;
+    	}
+    	mImporting = true;
+    	
+    	File source = new File(Environment.getExternalStorageDirectory(), 
+    			NoteExporter.EXPORT_DIR);
+    	
+    	final NoteImporter importer = new NoteImporter(source, 
+    			new NoteImporter.ProgressListener() {
+    		
+    		public void onImportProgress(int imported, int percent) {
+    			setTitle(getString(R.string.importing_notes, percent));
+    		}
+    	});
+    	
+    	mNotes.importNotes(importer, new NoteRepository.Callback<Integer>() {
+    		@Override
+    		public void onResult(Integer imported) {
+    			importDone();
+    			
+    			Toast.makeText(JNotepad.this, getString(R.string.import_done, 
+    					imported, importer.getDuplicateCount()), 
+    					Toast.LENGTH_LONG).show();
+    			
+    			if (importer.getTooLargeCount() > 0) {
+    				Toast.makeText(JNotepad.this, getString(R.string.import_too_large, 
+    						importer.getTooLargeCount(), NoteImporter.MAX_TEXT_BYTES / 1024), 
+    						Toast.LENGTH_LONG).show();
+    			}
+    		}
+    		
+    		@Override
+    		public void onError(Exception ex) {
+    			super.onError(ex);
+    			importDone();
+    			
+    			Toast.makeText(JNotepad.this, R.string.import_failed, 
+    					Toast.LENGTH_LONG).show();
+    		}
+    	});
+    }
+
+    /**
+     * Forgets an import once it is over (its notes were added to the list 
+     * as its batches were written)
+     */
+    private void importDone() {
+    	mImporting = false;
+    	setTitle(R.string.app_name);
+    }
+
+    /**
+     * Deletes the notes that have the same text as a more recent one, their 
+     * rows go when it is done
+     */
+    private void mergeDuplicates() {
+    	mNotes.mergeDuplicates(new NoteRepository.Callback<Integer>() {
+    		@Override
+    		public void onResult(Integer merged) {
+    			Toast.makeText(JNotepad.this, getString(R.string.duplicates_merged, merged), 
+    					Toast.LENGTH_SHORT).show();
+    		}
+    	});
+    }
+
     /**
      * Kicks off the edit intent
      */
     private void createNote() {
         Intent i = new Intent(this, EditNote.class);
         
-        /* We need a call back to update the list so we need the ForResult 
-         * version */
-        startActivityForResult(i, 0);
+        /* The list hears about the save itself (see applyChanges()) */
+        startActivity(i);
     }
 
     /**
@@ -197,22 +655,21 @@ public class JNotepad extends ListActivity {
          * item in the DB */
         i.putExtra(NotesDbAdapter.KEY_ROWID, id);
 
-        /* We need a call back to update the list so we need the ForResult 
-         * version */
-
-        startActivityForResult(i, 0);
+        /* The list hears about the save itself (see applyChanges()) */
+        startActivity(i);
     }
-    
+
     /**
-     * Called when the activity that we launched (the EditNote) completed.
-     * 
-     * We just refill the list of notes.
+     * Keeps the top of the list for the next start (not while it shows a 
+     * search or the old snapshot)
      */
     @Override
-    protected void onActivityResult(int requestCode, int resultCode, Intent intent) {
-        super.onActivityResult(requestCode, resultCode, intent);
-
-        fillData();
+    protected void onStop() {
+    	super.onStop();
+    	
+    	if (!mShowingSnapshot && !mSearch.isSearching()) {
+    		mNotes.saveSnapshot(mSnapshot, mNotesAdapter.getNotes());
+    	}
     }
 
     /**
@@ -223,8 +680,9 @@ public class JNotepad extends ListActivity {
 	protected void onDestroy() {
 		super.onDestroy();
 		
-		mNotesCursor.close();
-		mDbHelper.close();
+		mSearch.cancel();
+		cancelExport();
+		mNotes.close();
 	}
     
 }
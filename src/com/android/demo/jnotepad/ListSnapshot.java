@@ -0,0 +1,140 @@
+package com.android.demo.jnotepad;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * The first rows of the note list as they were when the list was last
+ * shown, kept in a small file. At start up the list draws these right
+ * away, while the database is still being opened (maybe upgraded) in the
+ * background, and swaps in the real rows when they are read.
+ *
+ * The file is a few KB, reading it on the UI thread costs less than the
+ * frame it saves. It is written off the UI thread (see
+ * NoteRepository.saveSnapshot()).
+ *
+ * @author jrymal
+ *
+ */
+final class ListSnapshot {
+
+	/** The number of rows kept (about a screen full) */
+	static final int SIZE = 20;
+
+	private static final String TAG = "ListSnapshot";
+
+	private static final String FILE_NAME = "list_snapshot";
+
+	/** Bumped when the layout of the file changes, an old file is ignored */
+	private static final int VERSION = 1;
+
+	private final File mFile;
+
+	/**
+	 * @param ctx the Context within which to work
+	 */
+	ListSnapshot(Context ctx) {
+		mFile = new File(ctx.getFilesDir(), FILE_NAME);
+	}
+
+	/**
+	 * @return the rows, empty if there is no snapshot (or it can't be read)
+	 */
+	List<NoteSummary> read() {
+		DataInputStream in;
+
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+		} catch (FileNotFoundException ex) {
+			/* never shown yet */
+			return Collections.emptyList();
+		}
+
+		try {
+			if (in.readInt() != VERSION) {
+				return Collections.emptyList();
+			}
+
+			int count = in.readInt();
+
+			if (count < 0 || count > SIZE) {
+				/* write() never leaves that, the file is damaged */
+				Log.w(TAG, "the list snapshot has " + count + " rows, it is ignored");
+				return Collections.emptyList();
+			}
+
+			List<NoteSummary> notes = new ArrayList<NoteSummary>(count);
+
+			for (int i = 0; i < count; i++) {
+				long rowId = in.readLong();
+				long datetime = in.readLong();
+
+				notes.add(new NoteSummary(rowId, in.readUTF(), datetime));
+			}
+			return notes;
+		} catch (IOException ex) {
+			Log.w(TAG, "could not read the list snapshot", ex);
+			return Collections.emptyList();
+		} finally {
+			try {
+				in.close();
+			} catch (IOException ex) {
+				/* it was only read */
+			}
+		}
+	}
+
+	/**
+	 * Replaces the snapshot with the first SIZE of the rows. The file is
+	 * written next to the old one and renamed over it, so a crash leaves
+	 * one or the other.
+	 *
+	 * @param notes the rows at the top of the list
+	 * @throws IOException if the file can't be written
+	 */
+	void write(List<NoteSummary> notes) throws IOException {
+		int count = Math.min(notes.size(), SIZE);
+		File temp = new File(mFile.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(temp)));
+		boolean written = false;
+
+		try {
+			out.writeInt(VERSION);
+			out.writeInt(count);
+
+			for (int i = 0; i < count; i++) {
+				NoteSummary note = notes.get(i);
+
+				out.writeLong(note.getRowId());
+				out.writeLong(note.getDatetime());
+				out.writeUTF(note.getPreview() == null ? "" : note.getPreview());
+			}
+			out.close();
+			written = true;
+		} finally {
+			if (!written) {
+				out.close();
+				temp.delete();
+			}
+		}
+
+		if (!temp.renameTo(mFile)) {
+			temp.delete();
+			throw new IOException("could not replace " + mFile);
+		}
+	}
+}
@@ -0,0 +1,93 @@
+package com.android.demo.jnotepad;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps the bodies of the notes opened last, for the whole process, so
+ * going back and forth between the list and a few notes does not read
+ * them from SQLite every time. The least recently used bodies are dropped
+ * once the cache holds MAX_CHARS characters.
+ *
+ * NotesDbAdapter drops a note from here as soon as it starts to change or
+ * delete it. Every drop also moves the generation on: a body read from the
+ * DB is only put here if no note changed since the read started, so a slow
+ * read can't put back a body that was just replaced.
+ *
+ * @author jrymal
+ *
+ */
+final class NoteCache {
+
+	/** The most characters kept (two bytes each) */
+	private static final int MAX_CHARS = 256 * 1024;
+
+	/** A longer body is not kept, it would push out all the others */
+	private static final int MAX_BODY_CHARS = MAX_CHARS / 4;
+
+	/** In access order, the eldest is the least recently used */
+	private static final LinkedHashMap<Long, String> sBodies =
+		new LinkedHashMap<Long, String>(16, 0.75f, true);
+
+	private static int sChars;
+
+	private static long sGeneration;
+
+	private NoteCache() {
+	}
+
+	/**
+	 * @return the body of the note, null if it is not cached
+	 */
+	static synchronized String get(long rowId) {
+		return sBodies.get(rowId);
+	}
+
+	/**
+	 * @return what to hand put() for a body that is about to be read
+	 */
+	static synchronized long generation() {
+		return sGeneration;
+	}
+
+	/**
+	 * Keeps a body, unless a note was changed since generation was taken
+	 *
+	 * @param rowId id of the note
+	 * @param body the body as it is in the DB
+	 * @param generation what generation() returned before the body was read
+	 */
+	static synchronized void put(long rowId, String body, long generation) {
+		if (generation != sGeneration || body.length() > MAX_BODY_CHARS) {
+			return;
+		}
+
+		String old = sBodies.put(rowId, body);
+
+		if (old != null) {
+			sChars -= old.length();
+		}
+		sChars += body.length();
+
+		Iterator<Map.Entry<Long, String>> eldest = sBodies.entrySet().iterator();
+
+		while (sChars > MAX_CHARS && eldest.hasNext()) {
+			sChars -= eldest.next().getValue().length();
+			eldest.remove();
+		}
+	}
+
+	/**
+	 * Drops a note (call it before the note is changed or deleted)
+	 */
+	static synchronized void remove(long rowId) {
+		sGeneration++;
+
+		String old = sBodies.remove(rowId);
+
+		if (old != null) {
+			sChars -= old.length();
+		}
+	}
+}
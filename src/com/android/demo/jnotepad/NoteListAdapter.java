@@ -0,0 +1,224 @@
+package com.android.demo.jnotepad;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import android.content.Context;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.Checkable;
+import android.widget.TextView;
+
+/**
+ * Backs the note list with the pages of notes loaded so far. The pages are 
+ * appended as the user scrolls, so only what has been looked at is in 
+ * memory. A reload swaps the rows under the same adapter (the ids are 
+ * stable, so the list keeps its place).
+ * 
+ * Drawing a row is cheap on purpose: the rows are recycled with their 
+ * views looked up once (RowHolder), and the text was built on the reader 
+ * thread (see NoteSummary), so scrolling does no formatting at all.
+ * 
+ * @author jrymal
+ *
+ */
+public class NoteListAdapter extends BaseAdapter {
+
+	/**
+	 * The views of a row, kept in its tag
+	 */
+	private static class RowHolder {
+		TextView mPreview;
+		TextView mDatetime;
+	}
+	
+	private final LayoutInflater mInflater;
+	
+	/** The notes selected for a group delete (owned by the activity) */
+	private final Set<Long> mSelectedIds;
+	
+	private final List<NoteSummary> mNotes = new ArrayList<NoteSummary>();
+	
+	/** false once a page came back short (the end of the notes) */
+	private boolean mHasMore = true;
+	
+	/**
+	 * @param context the Context within which to work
+	 * @param selectedIds the ids of the notes drawn as selected
+	 */
+	public NoteListAdapter(Context context, Set<Long> selectedIds) {
+		mInflater = LayoutInflater.from(context);
+		mSelectedIds = selectedIds;
+	}
+
+	/**
+	 * Replaces all the rows (used for a reload)
+	 * 
+	 * @param notes the new rows
+	 * @param requested the number of rows that were asked for
+	 */
+	public void setNotes(List<NoteSummary> notes, int requested) {
+		mNotes.clear();
+		mNotes.addAll(notes);
+		mHasMore = notes.size() >= requested;
+		notifyDataSetChanged();
+	}
+
+	/**
+	 * Adds the next page to the end of the list
+	 * 
+	 * @param page the rows of the page
+	 * @param requested the size of the page that was asked for
+	 */
+	public void appendPage(List<NoteSummary> page, int requested) {
+		mNotes.addAll(page);
+		mHasMore = page.size() >= requested;
+		notifyDataSetChanged();
+	}
+
+	/**
+	 * Puts notes where they belong in the list, most recently edited first. 
+	 * A note that is already there is moved (or just redrawn), one that 
+	 * would go past the loaded pages is left for the paging to bring in.
+	 * 
+	 * @param notes the new or updated notes
+	 */
+	public void putNotes(List<NoteSummary> notes) {
+		for (NoteSummary note : notes) {
+			int old = indexOf(note.getRowId());
+			
+			if (old >= 0) {
+				mNotes.remove(old);
+			}
+			
+			int position = insertionPoint(note);
+			
+			if (position < mNotes.size() || !mHasMore) {
+				mNotes.add(position, note);
+			}
+		}
+		notifyDataSetChanged();
+	}
+
+	/**
+	 * Takes notes out of the list
+	 * 
+	 * @param rowIds ids of the notes that were deleted
+	 */
+	public void removeNotes(long[] rowIds) {
+		boolean changed = false;
+		
+		for (long rowId : rowIds) {
+			int position = indexOf(rowId);
+			
+			if (position >= 0) {
+				mNotes.remove(position);
+				changed = true;
+			}
+		}
+		
+		if (changed) {
+			notifyDataSetChanged();
+		}
+	}
+
+	/**
+	 * @return the position of the note, -1 if it is not loaded
+	 */
+	private int indexOf(long rowId) {
+		for (int i = 0; i < mNotes.size(); i++) {
+			if (mNotes.get(i).getRowId() == rowId) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return where the note goes in the list (the order of the pages: time 
+	 *         stamp, then id, both descending)
+	 */
+	private int insertionPoint(NoteSummary note) {
+		int low = 0;
+		int high = mNotes.size();
+		
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			NoteSummary other = mNotes.get(mid);
+			
+			if (other.getDatetime() > note.getDatetime() 
+					|| (other.getDatetime() == note.getDatetime() 
+							&& other.getRowId() > note.getRowId())) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * @return the rows as they are now (do not change the list)
+	 */
+	public List<NoteSummary> getNotes() {
+		return mNotes;
+	}
+
+	/**
+	 * @return true if there may be more notes past the last loaded one
+	 */
+	public boolean hasMore() {
+		return mHasMore;
+	}
+
+	/**
+	 * @return the note the next page starts after (null for an empty list)
+	 */
+	public NoteSummary getLastNote() {
+		return mNotes.isEmpty() ? null : mNotes.get(mNotes.size() - 1);
+	}
+
+	public int getCount() {
+		return mNotes.size();
+	}
+
+	public NoteSummary getItem(int position) {
+		return mNotes.get(position);
+	}
+
+	public long getItemId(int position) {
+		return mNotes.get(position).getRowId();
+	}
+
+	@Override
+	public boolean hasStableIds() {
+		return true;
+	}
+
+	public View getView(int position, View convertView, ViewGroup parent) {
+		View row = convertView;
+		RowHolder holder;
+		
+		if (row == null) {
+			row = mInflater.inflate(R.layout.list_layout_row, parent, false);
+			
+			holder = new RowHolder();
+			holder.mPreview = (TextView) row.findViewById(R.id.list_layout_row_preview);
+			holder.mDatetime = (TextView) row.findViewById(R.id.list_layout_row_date);
+			row.setTag(holder);
+		} else {
+			holder = (RowHolder) row.getTag();
+		}
+		
+		NoteSummary note = mNotes.get(position);
+		
+		holder.mPreview.setText(note.getPreviewText());
+		holder.mDatetime.setText(note.getDatetimeText());
+		((Checkable) row).setChecked(mSelectedIds.contains(note.getRowId()));
+		
+		return row;
+	}
+}
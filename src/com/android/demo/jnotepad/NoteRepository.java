@@ -0,0 +1,824 @@
+/*
+ * Copyright (C) 2008 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.demo.jnotepad;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.android.demo.jnotepad.transfers.NoteExporter;
+import com.android.demo.jnotepad.transfers.NoteImporter;
+
+/**
+ * Asynchronous front end to the NotesDbAdapter. Nothing in here touches
+ * SQLite on the calling (UI) thread.
+ *
+ * All the writes (create, update, delete) go through a single writer thread
+ * so they are applied in the order they were requested. The queries run on a
+ * small pool of reader threads. Results are handed back on the main thread
+ * through a Callback.
+ *
+ * A read always waits for the writes that were queued before it, so an
+ * activity that saves a note and then reloads the list sees its own change.
+ *
+ * Every repository works on the same NotesDbAdapter, the one of the
+ * NotepadApplication. The repositories count the users of it: the first
+ * one opens it and it is closed CLOSE_DELAY after the last one is closed,
+ * so going from one activity to the next (or turning the phone) does not
+ * open the database again.
+ */
+public class NoteRepository {
+
+    /** Used for logging information*/
+    private static final String TAG = "NoteRepository";
+
+    /** Number of threads allowed to run queries at the same time */
+    private static final int READER_THREADS = 2;
+
+    /** How long the database stays open once nobody uses it (in ms) */
+    private static final long CLOSE_DELAY = 10 * 1000;
+
+    /**
+     * The writer is shared by the whole process, that way two activities
+     * can't race each other on the same row.
+     */
+    private static final ExecutorService sWriter =
+            Executors.newSingleThreadExecutor(new NamedThreadFactory("NoteWriter"));
+
+    /** The readers are shared by the whole process as well */
+    private static final ExecutorService sReaders =
+            Executors.newFixedThreadPool(READER_THREADS, new NamedThreadFactory("NoteReader"));
+
+    /** The last write that was queued (reads wait on this one) */
+    private static volatile Future<?> sLastWrite;
+
+    /** The number of open repositories (guarded by NoteRepository.class) */
+    private static int sUsers;
+
+    /** True from queuing the open to queuing the close (same guard) */
+    private static boolean sDbOpen;
+
+    /** Set once this process has checked for unfinished migrations */
+    private static final AtomicBoolean sMigrationsChecked = new AtomicBoolean();
+
+    private static final Handler sCloseHandler = new Handler(Looper.getMainLooper());
+
+    /** Set on the writer thread while a runWrite() task runs */
+    private static final ThreadLocal<Boolean> sInRunWrite = new ThreadLocal<Boolean>();
+
+    /** The id holders kept across an editor being recreated, by token (main
+     * thread only, see holdRowId()) */
+    private static final Map<String, AtomicLong> sHeldRowIds = new HashMap<String, AtomicLong>();
+
+    /**
+     * Receives the result of an asynchronous call. Both methods are called on
+     * the main thread.
+     *
+     * A callback can be cancelled: a query that has not started yet is then
+     * never run, and nothing is delivered for one that already has.
+     *
+     * @param <T> the type of the result
+     */
+    public static abstract class Callback<T> {
+
+        private volatile boolean mCancelled;
+
+        /**
+         * Drops the call this callback was passed to. Only meant for reads,
+         * a write that was queued is still applied.
+         */
+        public void cancel() {
+            mCancelled = true;
+        }
+
+        /**
+         * @return true if cancel() was called
+         */
+        public boolean isCancelled() {
+            return mCancelled;
+        }
+
+        /**
+         * Called with the result of the operation
+         *
+         * @param result the value the operation produced
+         */
+        public abstract void onResult(T result);
+
+        /**
+         * Called when the operation threw. By default this only logs.
+         *
+         * @param ex the exception that was thrown on the worker thread
+         */
+        public void onError(Exception ex) {
+            Log.e(TAG, "note operation failed", ex);
+        }
+    }
+
+    private final NotesDbAdapter mDbAdapter;
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /** Only touched on the main thread */
+    private boolean mClosed;
+
+    /** Closes the database if nobody took it up again */
+    private final Runnable mCloseIfUnused = new Runnable() {
+        public void run() {
+            synchronized (NoteRepository.class) {
+                if (sUsers > 0 || !sDbOpen) {
+                    return;
+                }
+                sDbOpen = false;
+            }
+
+            submitWrite(new Callable<Void>() {
+                public Void call() {
+                    mDbAdapter.close();
+                    return null;
+                }
+            }, null);
+        }
+    };
+
+    /** Posts the changes to the main thread (null if nobody listens) */
+    private NotesDbAdapter.ChangeListener mChangeForwarder;
+
+    /** Receives the migration progress on the main thread */
+    private volatile NotesDbAdapter.MigrationListener mMigrationListener;
+
+    /**
+     * Forwards the migration progress to the main thread
+     */
+    private final NotesDbAdapter.MigrationListener mMigrationProgress =
+            new NotesDbAdapter.MigrationListener() {
+        public void onMigrationProgress(final int version, final int done,
+                final int total) {
+            mMainHandler.post(new Runnable() {
+                public void run() {
+                    NotesDbAdapter.MigrationListener listener = mMigrationListener;
+
+                    if (!mClosed && listener != null) {
+                        listener.onMigrationProgress(version, done, total);
+                    }
+                }
+            });
+        }
+    };
+
+    /**
+     * Constructor - if the database is not open it is opened on the writer 
+     * thread, so this returns right away. Call close() when done.
+     *
+     * @param ctx the Context within which to work
+     */
+    public NoteRepository(Context ctx) {
+        mDbAdapter = NotepadApplication.from(ctx).getNotesDb();
+
+        synchronized (NoteRepository.class) {
+            sUsers++;
+
+            if (sDbOpen) {
+                return;
+            }
+            sDbOpen = true;
+        }
+
+        /* The reads queued after this wait for it like for any write */
+        submitWrite(new Callable<Void>() {
+            public Void call() {
+                mDbAdapter.open();
+                return null;
+            }
+        }, null);
+
+        /* Finish any row conversion an upgrade left behind. This is on the
+         * writer so no write sees a half converted table, but it is not
+         * tracked as the last write so the reads don't wait for it. Once per
+         * process is enough. */
+        if (sMigrationsChecked.getAndSet(true)) {
+            return;
+        }
+
+        sWriter.execute(new Runnable() {
+            public void run() {
+                try {
+                    mDbAdapter.runPendingMigrations(mMigrationProgress);
+                } catch (RuntimeException ex) {
+                    Log.e(TAG, "could not finish the migration", ex);
+                }
+            }
+        });
+    }
+
+    /**
+     * Sets who hears about the progress of a database upgrade
+     *
+     * @param listener called on the main thread (can be null)
+     */
+    public void setMigrationListener(NotesDbAdapter.MigrationListener listener) {
+        mMigrationListener = listener;
+    }
+
+    /**
+     * Waits for the database to be open (and for the writes queued so far) 
+     * and hands it out. Only for a caller that has to answer right away on 
+     * its own thread (NotesProvider), never call it on the main thread.
+     *
+     * @return the open database, it stays open until close() is called
+     */
+    NotesDbAdapter awaitDatabase() {
+        Future<?> lastWrite = sLastWrite;
+
+        try {
+            if (lastWrite != null) {
+                lastWrite.get();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException ex) {
+            /* The write reported its own failure */
+        }
+        return mDbAdapter;
+    }
+
+    /**
+     * Runs a write on the writer thread and waits for it, for a caller that 
+     * has to answer on its own thread (NotesProvider). It is queued and 
+     * tracked like any other write, so it is applied in order with the 
+     * saves of the app and the reads queued after it wait for it. A write 
+     * made from inside another one (a provider batch calls back into the 
+     * provider) runs right away, the writer is already running it. Never 
+     * call it on the main thread.
+     *
+     * @param task the write (the database is open when it runs)
+     * @return what the task returned
+     * @throws Exception what the task threw
+     */
+    <T> T runWrite(final Callable<T> task) throws Exception {
+        if (sInRunWrite.get() != null) {
+            return task.call();
+        }
+
+        Future<T> write = sWriter.submit(new Callable<T>() {
+            public T call() throws Exception {
+                sInRunWrite.set(Boolean.TRUE);
+                try {
+                    return task.call();
+                } finally {
+                    sInRunWrite.remove();
+                }
+            }
+        });
+        sLastWrite = write;
+
+        try {
+            return write.get();
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw (Exception) cause;
+        }
+    }
+
+    /**
+     * Sets who hears about the notes written (by any repository of the 
+     * process, see NotesDbAdapter.ChangeListener)
+     *
+     * @param listener called on the main thread (can be null)
+     */
+    public void setChangeListener(final NotesDbAdapter.ChangeListener listener) {
+        if (mChangeForwarder != null) {
+            mDbAdapter.removeChangeListener(mChangeForwarder);
+            mChangeForwarder = null;
+        }
+
+        if (listener == null || mClosed) {
+            return;
+        }
+
+        mChangeForwarder = new NotesDbAdapter.ChangeListener() {
+            public void onNotesChanged(final long[] inserted, final long[] updated,
+                    final long[] deleted) {
+                mMainHandler.post(new Runnable() {
+                    public void run() {
+                        if (!mClosed) {
+                            listener.onNotesChanged(inserted, updated, deleted);
+                        }
+                    }
+                });
+            }
+        };
+        mDbAdapter.addChangeListener(mChangeForwarder);
+    }
+
+    /**
+     * Stops the callbacks, none are delivered after this is called. The 
+     * writes queued so far are still applied. The database is closed after 
+     * them if no other repository takes it up within CLOSE_DELAY.
+     */
+    public void close() {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        setChangeListener(null);
+
+        synchronized (NoteRepository.class) {
+            if (--sUsers > 0) {
+                return;
+            }
+        }
+        sCloseHandler.postDelayed(mCloseIfUnused, CLOSE_DELAY);
+    }
+
+    /**
+     * Fetches one page of the note list, most recently edited first
+     *
+     * @param after the last note of the previous page, or null for the first
+     * page
+     * @param limit the maximum number of notes in the page
+     * @param callback receives the notes of the page
+     */
+    public void fetchNotesPage(NoteSummary after, final int limit,
+            Callback<List<NoteSummary>> callback) {
+        final long afterDatetime = after == null ? 0 : after.getDatetime();
+        final long afterRowId = after == null ? 0 : after.getRowId();
+
+        submitRead(new Callable<List<NoteSummary>>() {
+            public List<NoteSummary> call() {
+                return readSummaries(
+                        mDbAdapter.fetchNotesPage(afterDatetime, afterRowId, limit), limit);
+            }
+        }, callback);
+    }
+
+    /**
+     * Fetches the list rows of some notes, to update them in place
+     *
+     * @param rowIds ids of the notes (the ones that are gone are left out)
+     * @param callback receives the notes, in no particular order
+     */
+    public void fetchNotes(final long[] rowIds, Callback<List<NoteSummary>> callback) {
+        submitRead(new Callable<List<NoteSummary>>() {
+            public List<NoteSummary> call() {
+                return readSummaries(mDbAdapter.fetchNotes(rowIds), rowIds.length);
+            }
+        }, callback);
+    }
+
+    /**
+     * Searches the notes for the words in query
+     *
+     * @param query the words to look for, as the user typed them
+     * @param limit the maximum number of notes to return
+     * @param withinIds only these notes are searched, null to search them all
+     * @param callback receives the best matches, their preview is the
+     * snippet around the hits (see NotesDbAdapter.searchNotes())
+     */
+    public void searchNotes(final String query, final int limit,
+            final long[] withinIds, Callback<List<NoteSummary>> callback) {
+        submitRead(new Callable<List<NoteSummary>>() {
+            public List<NoteSummary> call() {
+                return readSummaries(
+                        mDbAdapter.searchNotes(query, limit, withinIds), limit);
+            }
+        }, callback);
+    }
+
+    /**
+     * Copies the rows of a list cursor (_id, preview, datetime) out and
+     * closes it
+     *
+     * @param cursor the rows, null is read as no rows
+     * @param expected the number of rows there will probably be
+     */
+    private static List<NoteSummary> readSummaries(Cursor cursor, int expected) {
+        List<NoteSummary> notes = new ArrayList<NoteSummary>(expected);
+
+        if (cursor == null) {
+            return notes;
+        }
+
+        try {
+            int idCol = cursor.getColumnIndexOrThrow(NotesDbAdapter.KEY_ROWID);
+            int previewCol = cursor.getColumnIndexOrThrow(NotesDbAdapter.KEY_PREVIEW);
+            int dateCol = cursor.getColumnIndexOrThrow(NotesDbAdapter.KEY_DATETIME);
+
+            while (cursor.moveToNext()) {
+                notes.add(new NoteSummary(cursor.getLong(idCol),
+                        cursor.getString(previewCol), cursor.getLong(dateCol)));
+            }
+        } finally {
+            cursor.close();
+        }
+        return notes;
+    }
+
+    /**
+     * Fetches the body of a single note. A note that was opened (or saved) 
+     * recently is handed back from the NoteCache without going to a worker 
+     * thread, as long as no write is waiting to be applied.
+     *
+     * @param rowId id of note to retrieve
+     * @param callback receives the body or null if there is no such note
+     */
+    public void fetchNoteBody(final long rowId, final Callback<String> callback) {
+        Future<?> lastWrite = sLastWrite;
+        final String cached = NoteCache.get(rowId);
+
+        if (cached != null && (lastWrite == null || lastWrite.isDone())) {
+            mMainHandler.post(new Runnable() {
+                public void run() {
+                    if (!mClosed && !callback.isCancelled()) {
+                        callback.onResult(cached);
+                    }
+                }
+            });
+            return;
+        }
+
+        submitRead(new Callable<String>() {
+            public String call() {
+                return mDbAdapter.fetchNoteBody(rowId);
+            }
+        }, callback);
+    }
+
+    /**
+     * Writes the list snapshot on a reader thread (it is a file, it does not 
+     * wait for the database)
+     *
+     * @param snapshot where to write it
+     * @param notes the rows at the top of the list
+     */
+    public void saveSnapshot(final ListSnapshot snapshot, List<NoteSummary> notes) {
+        final List<NoteSummary> rows = new ArrayList<NoteSummary>(
+                notes.subList(0, Math.min(notes.size(), ListSnapshot.SIZE)));
+
+        sReaders.execute(new Runnable() {
+            public void run() {
+                try {
+                    snapshot.write(rows);
+                } catch (IOException ex) {
+                    Log.w(TAG, "could not save the list snapshot", ex);
+                }
+            }
+        });
+    }
+
+    /**
+     * Runs some file I/O on a reader thread. It does not wait for the 
+     * database, the task must not touch it.
+     *
+     * @param task the I/O to do
+     * @param callback receives what the task returned, or what it threw
+     */
+    public <T> void runInBackground(final Callable<T> task, final Callback<T> callback) {
+        sReaders.execute(new Runnable() {
+            public void run() {
+                runAndDeliver(task, callback);
+            }
+        });
+    }
+
+    /**
+     * Runs an export on a reader thread. It waits for the writes queued 
+     * before it like any read, but not for the ones queued after (a note 
+     * saved while the export runs goes in the next one).
+     *
+     * @param exporter the export to run (cancel it through itself)
+     * @param callback receives the archive, null if there was nothing to 
+     * export or the export was cancelled
+     */
+    public void exportNotes(final NoteExporter exporter, Callback<File> callback) {
+        submitRead(new Callable<File>() {
+            public File call() throws Exception {
+                return exporter.export(mDbAdapter);
+            }
+        }, callback);
+    }
+
+    /**
+     * Runs an import on the writer thread (its batches are writes). Like 
+     * the migrations it is not tracked as the last write, so the list can 
+     * still be read while it runs.
+     *
+     * @param importer the import to run
+     * @param callback receives the number of notes added
+     */
+    public void importNotes(final NoteImporter importer, final Callback<Integer> callback) {
+        final Callable<Integer> task = new Callable<Integer>() {
+            public Integer call() throws Exception {
+                return importer.importNotes(mDbAdapter);
+            }
+        };
+
+        sWriter.execute(new Runnable() {
+            public void run() {
+                runAndDeliver(task, callback);
+            }
+        });
+    }
+
+    /**
+     * Delete the note with the given rowId
+     *
+     * @param rowId id of note to delete
+     * @param callback receives true if deleted, false otherwise (can be null)
+     */
+    public void deleteNote(final long rowId, Callback<Boolean> callback) {
+        submitWrite(new Callable<Boolean>() {
+            public Boolean call() {
+                return mDbAdapter.deleteNote(rowId);
+            }
+        }, callback);
+    }
+
+    /**
+     * Delete a set of notes in one transaction
+     *
+     * @param rowIds ids of the notes to delete
+     * @param callback receives one result per id, 1 if deleted and 0 if the
+     * note was already gone (can be null)
+     */
+    public void deleteNotes(long[] rowIds, Callback<long[]> callback) {
+        List<NotesDbAdapter.BatchOperation> operations =
+                new ArrayList<NotesDbAdapter.BatchOperation>(rowIds.length);
+
+        for (long rowId : rowIds) {
+            operations.add(NotesDbAdapter.BatchOperation.delete(rowId));
+        }
+        applyBatch(operations, callback);
+    }
+
+    /**
+     * Applies a list of operations in a single transaction
+     *
+     * @param operations the creates, updates and deletes to apply in order
+     * @param callback receives the per operation results (see
+     * NotesDbAdapter.applyBatch()), or the error if the batch was rolled back
+     */
+    public void applyBatch(final List<NotesDbAdapter.BatchOperation> operations,
+            Callback<long[]> callback) {
+        submitWrite(new Callable<long[]>() {
+            public long[] call() {
+                return mDbAdapter.applyBatch(operations);
+            }
+        }, callback);
+    }
+
+    /**
+     * Merges the notes that have the same body (the most recently edited 
+     * one of each group is kept)
+     *
+     * @param callback receives the number of notes deleted (can be null)
+     */
+    public void mergeDuplicates(Callback<Integer> callback) {
+        submitWrite(new Callable<Integer>() {
+            public Integer call() {
+                return mDbAdapter.mergeDuplicates();
+            }
+        }, callback);
+    }
+
+    /**
+     * Delete the note held by rowId. The id is read on the writer thread, so
+     * this also deletes a note whose creation is still queued.
+     *
+     * @param rowId holds the id of the note to delete, reset to 0 after
+     * @param callback receives true if deleted, false otherwise (can be null)
+     */
+    public void deleteNote(final AtomicLong rowId, Callback<Boolean> callback) {
+        submitWrite(new Callable<Boolean>() {
+            public Boolean call() {
+                long id = rowId.getAndSet(0);
+
+                return id != 0 && mDbAdapter.deleteNote(id);
+            }
+        }, callback);
+    }
+
+    /**
+     * Saves the body of a note the way the editor wants it:
+     * <ul>
+     * <li>an empty body deletes the note</li>
+     * <li>a note without an id is created and the new id stored in rowId</li>
+     * <li>an existing note is updated</li>
+     * </ul>
+     * Nothing is read back to see if the body changed, the caller only saves
+     * when it did (see AutoSaver).
+     * The id is read and written on the writer thread, so saving twice in a
+     * row before the first save finished will not create the note twice.
+     *
+     * @param rowId holds the id of the note, 0 if it is not in the DB yet
+     * @param body the trimmed body of the note
+     * @param callback receives the id of the note after the save, 0 if it
+     * was deleted (can be null)
+     */
+    public void saveNote(final AtomicLong rowId, final String body,
+            Callback<Long> callback) {
+        submitWrite(new Callable<Long>() {
+            public Long call() {
+                long id = rowId.get();
+
+                if (body.length() == 0) {
+                    /* They've committed an empty string, we assume they want
+                     * to delete the message */
+                    if (id != 0) {
+                        mDbAdapter.deleteNote(id);
+                        rowId.set(0);
+                    }
+                } else if (id == 0) {
+                    /* This is a new note and we need an ID number for the row*/
+                    id = mDbAdapter.createNote(body);
+
+                    if (id > 0) {
+                        rowId.set(id);
+                        NoteCache.put(id, body, NoteCache.generation());
+                    }
+                } else if (mDbAdapter.updateNote(id, body)) {
+                    /* The editor is likely to open it again soon */
+                    NoteCache.put(id, body, NoteCache.generation());
+                }
+                return rowId.get();
+            }
+        }, callback);
+    }
+
+    /**
+     * Keeps the id holder of a note for the editor that replaces this one 
+     * (the phone turned). The create of a new note may still be queued when 
+     * the state is saved, it sets the id in this holder later, so the new 
+     * editor has to save through the same holder or it creates the note a 
+     * second time. Main thread only.
+     *
+     * @param rowId the holder passed to saveNote()
+     * @return the token to put in the saved state, hand it to takeRowId()
+     */
+    static String holdRowId(AtomicLong rowId) {
+        String token = UUID.randomUUID().toString();
+
+        sHeldRowIds.put(token, rowId);
+        return token;
+    }
+
+    /**
+     * @param token what holdRowId() returned (can be null)
+     * @return the holder kept under the token, null if there is none (the 
+     *         process was restarted since, or it was taken already)
+     */
+    static AtomicLong takeRowId(String token) {
+        return token == null ? null : sHeldRowIds.remove(token);
+    }
+
+    /**
+     * Queues a task on the single writer thread
+     */
+    private <T> void submitWrite(final Callable<T> task, final Callback<T> callback) {
+        sLastWrite = sWriter.submit(new Runnable() {
+            public void run() {
+                runAndDeliver(task, callback);
+            }
+        });
+    }
+
+    /**
+     * Queues a task on the reader pool. The task waits for the database to
+     * be opened and for any write queued before it.
+     */
+    private <T> void submitRead(final Callable<T> task, final Callback<T> callback) {
+        final Future<?> lastWrite = sLastWrite;
+
+        sReaders.execute(new Runnable() {
+            public void run() {
+                try {
+                    /* the open is a write as well */
+                    if (lastWrite != null) {
+                        lastWrite.get();
+                    }
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch (ExecutionException ex) {
+                    /* The write reported its own failure, the read goes on */
+                }
+                runAndDeliver(task, callback);
+            }
+        });
+    }
+
+    /**
+     * Runs the task on the current (worker) thread and posts the outcome to
+     * the main thread
+     */
+    private <T> void runAndDeliver(Callable<T> task, final Callback<T> callback) {
+        T result = null;
+        Exception error = null;
+
+        if (callback != null && callback.isCancelled()) {
+            return;
+        }
+
+        try {
+            result = task.call();
+        } catch (Exception ex) {
+            error = ex;
+        }
+
+        if (callback == null) {
+            if (error != null) {
+                Log.e(TAG, "note operation failed", error);
+            }
+            release(result);
+            return;
+        }
+
+        final T finalResult = result;
+        final Exception finalError = error;
+
+        mMainHandler.post(new Runnable() {
+            public void run() {
+                if (mClosed || callback.isCancelled()) {
+                    /* Nobody is listening anymore */
+                    release(finalResult);
+                } else if (finalError != null) {
+                    callback.onError(finalError);
+                } else {
+                    callback.onResult(finalResult);
+                }
+            }
+        });
+    }
+
+    /**
+     * Closes a result that will never reach its receiver
+     */
+    private static void release(Object result) {
+        if (result instanceof Cursor) {
+            ((Cursor) result).close();
+        }
+    }
+
+    /**
+     * Gives the worker threads readable names and a background priority
+     */
+    private static class NamedThreadFactory implements ThreadFactory {
+
+        private final String mName;
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        NamedThreadFactory(String name) {
+            mName = name;
+        }
+
+        public Thread newThread(final Runnable r) {
+            Thread thread = new Thread(new Runnable() {
+                public void run() {
+                    android.os.Process.setThreadPriority(
+                            android.os.Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, mName + "-" + mCount.incrementAndGet());
+
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
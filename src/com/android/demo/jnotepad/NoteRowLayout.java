@@ -0,0 +1,56 @@
+package com.android.demo.jnotepad;
+
+import android.content.Context;
+import android.util.AttributeSet;
+import android.widget.Checkable;
+import android.widget.TableLayout;
+
+/**
+ * The layout of a row in the note list. All it adds is a checked state, so 
+ * the row background can show that the note is selected.
+ * 
+ * @author jrymal
+ *
+ */
+public class NoteRowLayout extends TableLayout implements Checkable {
+
+	private static final int[] CHECKED_STATE_SET = {android.R.attr.state_checked};
+	
+	private boolean mChecked;
+	
+	public NoteRowLayout(Context context) {
+		super(context);
+	}
+
+	public NoteRowLayout(Context context, AttributeSet attrs) {
+		super(context, attrs);
+	}
+
+	public boolean isChecked() {
+		return mChecked;
+	}
+
+	public void setChecked(boolean checked) {
+		if (mChecked != checked) {
+			mChecked = checked;
+			refreshDrawableState();
+		}
+	}
+
+	public void toggle() {
+		setChecked(!mChecked);
+	}
+
+	/**
+	 * Adds the checked state to the states the background is drawn with
+	 */
+	@Override
+	protected int[] onCreateDrawableState(int extraSpace) {
+		int[] drawableState = super.onCreateDrawableState(extraSpace + 1);
+		
+		if (mChecked) {
+			mergeDrawableStates(drawableState, CHECKED_STATE_SET);
+		}
+		return drawableState;
+	}
+}
@@ -0,0 +1,216 @@
+package com.android.demo.jnotepad;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.os.Handler;
+
+/**
+ * Search as you type for the note list. The search box hands every change
+ * to setQuery(), and this makes sure that turns into as few queries as
+ * possible:
+ * <ul>
+ * <li>the query only runs once the typing pauses (debounce)</li>
+ * <li>a query that is still running when the text changes is cancelled,
+ * its results are never shown</li>
+ * <li>the results of the last few queries are kept, so going back (a
+ * backspace) costs nothing</li>
+ * <li>when the user adds to the end of a query that found everything there
+ * was to find, the new query only looks at the notes the old one found</li>
+ * </ul>
+ * Everything in here runs on the UI thread.
+ *
+ * @author jrymal
+ *
+ */
+public class NoteSearch {
+
+	/**
+	 * Receives what the list should show
+	 */
+	public interface Listener {
+
+		/**
+		 * Called with the results of the search
+		 *
+		 * @param notes the best matches, best first
+		 */
+		void onSearchResults(List<NoteSummary> notes);
+
+		/**
+		 * Called when the search box is emptied (the list should show all
+		 * the notes again)
+		 */
+		void onSearchCleared();
+	}
+
+	/** How long the typing has to pause before the query runs */
+	private static final long DEBOUNCE_MILLIS = 250;
+
+	/** The number of queries whose results are kept */
+	private static final int CACHE_SIZE = 8;
+
+	private final NoteRepository mNotes;
+	private final Listener mListener;
+	private final int mLimit;
+	private final Handler mHandler = new Handler();
+
+	/** The results of the recent queries (keyed on the full text query),
+	 * least recently used first */
+	private final Map<String, List<NoteSummary>> mCache =
+		new LinkedHashMap<String, List<NoteSummary>>(CACHE_SIZE, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, List<NoteSummary>> eldest) {
+			return size() > CACHE_SIZE;
+		}
+	};
+
+	/** The full text query of what is in the search box (null if empty) */
+	private String mMatch;
+
+	/** The query whose results are on screen, this is what gets narrowed */
+	private String mShownMatch;
+	private List<NoteSummary> mShownNotes;
+
+	/** The query that is running */
+	private NoteRepository.Callback<List<NoteSummary>> mRunning;
+
+	private final Runnable mRunQuery = new Runnable() {
+		public void run() {
+			runQuery();
+		}
+	};
+
+	/**
+	 * @param notes where the queries go
+	 * @param limit the most notes a search returns
+	 * @param listener receives the results
+	 */
+	public NoteSearch(NoteRepository notes, int limit, Listener listener) {
+		mNotes = notes;
+		mLimit = limit;
+		mListener = listener;
+	}
+
+	/**
+	 * @return true while there is something to search for
+	 */
+	public boolean isSearching() {
+		return mMatch != null;
+	}
+
+	/**
+	 * Called when the text in the search box changes
+	 *
+	 * @param query what is in the search box
+	 */
+	public void setQuery(String query) {
+		String match = NotesDbAdapter.buildMatch(query);
+
+		if (match == null ? mMatch == null : match.equals(mMatch)) {
+			/* Only punctuation or spaces changed */
+			return;
+		}
+
+		mMatch = match;
+		cancel();
+
+		if (match == null) {
+			mShownMatch = null;
+			mShownNotes = null;
+			mListener.onSearchCleared();
+			return;
+		}
+
+		List<NoteSummary> cached = mCache.get(match);
+
+		if (cached != null) {
+			show(match, cached);
+			return;
+		}
+
+		mHandler.postDelayed(mRunQuery, DEBOUNCE_MILLIS);
+	}
+
+	/**
+	 * Forgets every result (the notes changed) and runs the current search
+	 * again right away
+	 */
+	public void refresh() {
+		mCache.clear();
+		mShownMatch = null;
+		mShownNotes = null;
+		cancel();
+
+		if (mMatch != null) {
+			runQuery();
+		}
+	}
+
+	/**
+	 * Stops any pending or running query (call this when the list goes away)
+	 */
+	public void cancel() {
+		mHandler.removeCallbacks(mRunQuery);
+
+		if (mRunning != null) {
+			mRunning.cancel();
+			mRunning = null;
+		}
+	}
+
+	/**
+	 * Runs the query for what is in the search box
+	 */
+	private void runQuery() {
+		final String match = mMatch;
+		long[] withinIds = null;
+
+		/* Adding to the end of a query can only find fewer notes, so if the
+		 * shown results are all the notes there are, only those are searched */
+		if (mShownMatch != null && mShownNotes.size() < mLimit
+				&& match.startsWith(stripPrefixMark(mShownMatch))) {
+			withinIds = new long[mShownNotes.size()];
+
+			for (int i = 0; i < withinIds.length; i++) {
+				withinIds[i] = mShownNotes.get(i).getRowId();
+			}
+		}
+
+		mRunning = new NoteRepository.Callback<List<NoteSummary>>() {
+			@Override
+			public void onResult(List<NoteSummary> notes) {
+				mRunning = null;
+				mCache.put(match, notes);
+				show(match, notes);
+			}
+
+			@Override
+			public void onError(Exception ex) {
+				super.onError(ex);
+				mRunning = null;
+			}
+		};
+
+		/* The query is given as is, the adapter turns it into the same
+		 * full text query again */
+		mNotes.searchNotes(match, mLimit, withinIds, mRunning);
+	}
+
+	/**
+	 * Puts results on screen
+	 */
+	private void show(String match, List<NoteSummary> notes) {
+		mShownMatch = match;
+		mShownNotes = notes;
+		mListener.onSearchResults(notes);
+	}
+
+	/**
+	 * @return the query without the prefix mark of its last word
+	 */
+	private static String stripPrefixMark(String match) {
+		return match.endsWith("*") ? match.substring(0, match.length() - 1) : match;
+	}
+}
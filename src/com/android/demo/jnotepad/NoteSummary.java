@@ -0,0 +1,123 @@
+package com.android.demo.jnotepad;
+
+import java.text.DateFormat;
+import java.util.Date;
+
+import android.graphics.Typeface;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+import android.text.style.StyleSpan;
+
+/**
+ * What the note list knows about a note: just enough to draw a row. These 
+ * are filled on a reader thread so the list never holds a cursor. The text 
+ * of the row (the highlighted preview and the time stamp) is built there 
+ * as well, once per note, so drawing a row only sets it.
+ * 
+ * @author jrymal
+ *
+ */
+public class NoteSummary {
+
+	/** DateFormat is not thread safe, every reader thread gets its own */
+	private static final ThreadLocal<DateFormat> sDateFormat = new ThreadLocal<DateFormat>() {
+		@Override
+		protected DateFormat initialValue() {
+			return DateFormat.getDateTimeInstance(DateFormat.SHORT, DateFormat.SHORT);
+		}
+	};
+	
+	private final long mRowId;
+	private final String mPreview;
+	private final long mDatetime;
+	
+	private final CharSequence mPreviewText;
+	private final String mDatetimeText;
+	
+	/**
+	 * @param rowId the id of the note
+	 * @param preview the start of the body of the note
+	 * @param datetime when the note was last saved (milliseconds since the 
+	 *        epoch)
+	 */
+	public NoteSummary(long rowId, String preview, long datetime) {
+		mRowId = rowId;
+		mPreview = preview;
+		mDatetime = datetime;
+		
+		mPreviewText = highlight(preview);
+		mDatetimeText = formatDatetime(datetime);
+	}
+
+	public long getRowId() {
+		return mRowId;
+	}
+
+	public String getPreview() {
+		return mPreview;
+	}
+
+	public long getDatetime() {
+		return mDatetime;
+	}
+
+	/**
+	 * @return the preview as the list shows it
+	 */
+	public CharSequence getPreviewText() {
+		return mPreviewText;
+	}
+
+	/**
+	 * @return the time stamp as the list shows it
+	 */
+	public String getDatetimeText() {
+		return mDatetimeText;
+	}
+
+	/**
+	 * Shows the words a search matched (in a search snippet they are between 
+	 * NotesDbAdapter.SNIPPET_START and SNIPPET_END) in bold
+	 * 
+	 * @param preview the preview or the snippet of the note
+	 * @return the text to show
+	 */
+	private static CharSequence highlight(String preview) {
+		if (preview == null || preview.indexOf(NotesDbAdapter.SNIPPET_START) < 0) {
+			return preview;
+		}
+		
+		SpannableStringBuilder text = new SpannableStringBuilder();
+		int pos = 0;
+		int start;
+		
+		while ((start = preview.indexOf(NotesDbAdapter.SNIPPET_START, pos)) >= 0) {
+			int end = preview.indexOf(NotesDbAdapter.SNIPPET_END, start);
+			
+			if (end < 0) {
+				break;
+			}
+			
+			text.append(preview, pos, start);
+			int boldStart = text.length();
+			text.append(preview, start + NotesDbAdapter.SNIPPET_START.length(), end);
+			text.setSpan(new StyleSpan(Typeface.BOLD), boldStart, text.length(), 
+					Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+			pos = end + NotesDbAdapter.SNIPPET_END.length();
+		}
+		text.append(preview, pos, preview.length());
+		
+		return text;
+	}
+
+	/**
+	 * @param datetime milliseconds since the epoch, 0 if unknown
+	 * @return the time stamp as shown in the list
+	 */
+	private static String formatDatetime(long datetime) {
+		if (datetime == 0) {
+			return "";
+		}
+		return sDateFormat.get().format(new Date(datetime));
+	}
+}
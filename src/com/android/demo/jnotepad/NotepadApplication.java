@@ -0,0 +1,63 @@
+package com.android.demo.jnotepad;
+
+import android.app.Application;
+import android.content.Context;
+import android.os.SystemClock;
+
+/**
+ * Holds what lives as long as the process does. There is one
+ * NotesDbAdapter (and so one SQLiteOpenHelper) for the whole application,
+ * every activity reaches it through a NoteRepository, which opens it when
+ * the first repository is made and closes it a while after the last one
+ * is closed.
+ *
+ * @author jrymal
+ *
+ */
+public class NotepadApplication extends Application {
+
+	/** When the process started (uptime), 0 once the first activity took it */
+	private static long sLaunchStart;
+
+	private NotesDbAdapter mNotesDb;
+
+	@Override
+	public void onCreate() {
+		super.onCreate();
+
+		sLaunchStart = SystemClock.uptimeMillis();
+	}
+
+	/**
+	 * The start of a launch for the start up timing: the start of the 
+	 * process for the first activity, otherwise the time it is given
+	 * 
+	 * @param now when the activity was created (uptime)
+	 * @return when the launch started (uptime)
+	 */
+	static synchronized long takeLaunchStart(long now) {
+		long start = sLaunchStart;
+
+		sLaunchStart = 0;
+		return start == 0 ? now : start;
+	}
+
+	/**
+	 * @return the notes database of the application (open it through a
+	 *         NoteRepository)
+	 */
+	synchronized NotesDbAdapter getNotesDb() {
+		/* Made on first use, the NotesProvider can ask before onCreate() */
+		if (mNotesDb == null) {
+			mNotesDb = new NotesDbAdapter(this);
+		}
+		return mNotesDb;
+	}
+
+	/**
+	 * @return the application a context belongs to
+	 */
+	static NotepadApplication from(Context ctx) {
+		return (NotepadApplication) ctx.getApplicationContext();
+	}
+}
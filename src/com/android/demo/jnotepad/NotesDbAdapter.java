@@ -16,17 +16,31 @@
 
 package com.android.demo.jnotepad;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
 import java.text.DateFormat;
-import java.util.Date;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
 
-import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
 import android.util.Log;
 
+import com.android.demo.jnotepad.diagnostics.Metrics;
+
 /**
  * Simple notes database access helper class. Defines the basic CRUD operations
  * for the notepad example, and gives the ability to list all notes as well as
@@ -39,32 +53,857 @@ import android.util.Log;
  */
 public class NotesDbAdapter {
 
-	/** Column Names */
+	/** Column Names (datetime is in milliseconds since the epoch) */
     public static final String KEY_DATETIME = "datetime";
     public static final String KEY_BODY = "body";
     public static final String KEY_ROWID = "_id";
+    public static final String KEY_PREVIEW = "preview";
+    public static final String KEY_REVISION = "revision";
+    public static final String KEY_HASH = "hash";
+    public static final String KEY_CODEC = "codec";
 
     private static final String REQUEST_LIST[] = new String[] 
     		{KEY_ROWID, KEY_DATETIME, KEY_BODY};
 
+    /** The number of characters of the body the list shows */
+    public static final int PREVIEW_LENGTH = 100;
+
+    /** 
+     * Marks around the matched words in a search snippet. These can't be 
+     * typed, so they can't clash with the text of a note.
+     */
+    public static final String SNIPPET_START = "\u0002";
+    public static final String SNIPPET_END = "\u0003";
+
+    /** The most revisions kept per note, the oldest ones go first */
+    public static final int MAX_REVISIONS = 50;
+
+    /** 
+     * Every SNAPSHOT_INTERVAL-th revision is stored whole, so rebuilding a 
+     * revision never takes more than that many deltas
+     */
+    private static final int SNAPSHOT_INTERVAL = 10;
+
+    /** 
+     * The most characters of a body kept in one row. A longer body keeps its 
+     * first chunk in the notes table and the rest in note_chunks, so no 
+     * single value gets near the size of a cursor window.
+     */
+    public static final int BODY_CHUNK_LENGTH = 64 * 1024;
+
+    /** What the list needs for a row (never the body) */
+    private static final String PAGE_LIST[] = new String[] 
+    		{KEY_ROWID, KEY_PREVIEW, KEY_DATETIME};
+
     /** Used for logging information*/
     private static final String TAG = "NotesDbAdapter";
+
+    /** 
+     * Times every call (see Metrics). A cursor query only runs when the 
+     * cursor is first read, so those times are for preparing the query.
+     */
+    private static final Metrics.Timer T_OPEN = Metrics.timer("db.open");
+    private static final Metrics.Timer T_MIGRATE = Metrics.timer("db.runPendingMigrations");
+    private static final Metrics.Timer T_INSERT = Metrics.timer("db.insertNote");
+    private static final Metrics.Timer T_DELETE = Metrics.timer("db.deleteNote");
+    private static final Metrics.Timer T_UPDATE = Metrics.timer("db.updateNote");
+    private static final Metrics.Timer T_FETCH_PAGE = Metrics.timer("db.fetchNotesPage");
+    private static final Metrics.Timer T_FETCH_SINCE = Metrics.timer("db.fetchNotesSince");
+    private static final Metrics.Timer T_FETCH_NOTES = Metrics.timer("db.fetchNotes");
+    private static final Metrics.Timer T_SEARCH = Metrics.timer("db.searchNotes");
+    private static final Metrics.Timer T_FETCH_NOTE = Metrics.timer("db.fetchNote");
+    private static final Metrics.Timer T_FETCH_BODY = Metrics.timer("db.fetchNoteBody");
+    private static final Metrics.Timer T_FETCH_DUPLICATES = Metrics.timer("db.fetchDuplicates");
+    private static final Metrics.Timer T_HAS_BODY = Metrics.timer("db.hasNoteWithBody");
+    private static final Metrics.Timer T_MERGE = Metrics.timer("db.mergeDuplicates");
+    private static final Metrics.Timer T_FETCH_REVISIONS = Metrics.timer("db.fetchRevisions");
+    private static final Metrics.Timer T_FETCH_REVISION = Metrics.timer("db.fetchRevisionBody");
+    private static final Metrics.Timer T_RESTORE = Metrics.timer("db.restoreRevision");
+    private static final Metrics.Timer T_BATCH = Metrics.timer("db.applyBatch");
+    private static final Metrics.Timer T_TRANSACTION = Metrics.timer("db.runInTransaction");
+    private static final Metrics.Counter C_BODY_CACHE_HITS = 
+        Metrics.counter("db.bodyCache.hits");
+    private static final Metrics.Counter C_BODY_CACHE_MISSES = 
+        Metrics.counter("db.bodyCache.misses");
+
     private DatabaseHelper mDbHelper;
     private SQLiteDatabase mDb;
 
+    /** 
+     * The list queries run on this. In WAL mode it is a second, read only, 
+     * connection, so they don't wait for the writes (and the writes don't 
+     * wait for them). Otherwise it is mDb.
+     */
+    private SQLiteDatabase mReadDb;
+
+    /**
+     * Precompiled statements, these live as long as the DB is open so SQLite
+     * only has to parse them once. A statement can only be used by one thread
+     * at a time, so they are all guarded by mStatementLock.
+     */
+    private SQLiteStatement mInsertStmt;
+    private SQLiteStatement mUpdateStmt;
+    private SQLiteStatement mDeleteStmt;
+    private SQLiteStatement mBodyByIdStmt;
+    private SQLiteStatement mChangesStmt;
+    private SQLiteStatement mFtsInsertStmt;
+    private SQLiteStatement mFtsUpdateStmt;
+    private SQLiteStatement mFtsDeleteStmt;
+    private SQLiteStatement mRevisionInsertStmt;
+    private SQLiteStatement mRevisionLatestStmt;
+    private SQLiteStatement mRevisionTrimStmt;
+    private SQLiteStatement mRevisionDeleteStmt;
+    private SQLiteStatement mChunkInsertStmt;
+    private SQLiteStatement mChunkDeleteStmt;
+    private SQLiteStatement mChunkByIdStmt;
+    private SQLiteStatement mHashByIdStmt;
+    private SQLiteStatement mHashExistsStmt;
+    private final Object mStatementLock = new Object();
+
+    /** 
+     * The notes written in the transaction that is open, by id, with what 
+     * happened to them (NOTE_INSERTED and so on). Guarded by mStatementLock. 
+     */
+    private final Map<Long, Integer> mPendingChanges = new LinkedHashMap<Long, Integer>();
+
+    private final List<ChangeListener> mChangeListeners = 
+        new CopyOnWriteArrayList<ChangeListener>();
+
+    /** What happened to a note in mPendingChanges */
+    private static final int NOTE_INSERTED = 1;
+    private static final int NOTE_UPDATED = 2;
+    private static final int NOTE_DELETED = 3;
+
     /**
      * Database creation sql statement
      */
     private static final String DATABASE_CREATE =
         "create table notes (_id integer primary key autoincrement, "
-        + "body text not null, datetime text not null);";
+        + "body text not null, datetime integer not null, preview text, hash integer, "
+        + "codec integer not null default 0);";
+
+    /**
+     * The list is ordered on the time stamp, this keeps that (and any date 
+     * range) an index scan
+     */
+    private static final String DATETIME_INDEX_CREATE =
+        "create index notes_datetime on notes (datetime);";
+
+    /**
+     * The content hash (see ContentHash) of the whole body. It finds the 
+     * duplicate notes, and tells an update that the body did not change, 
+     * without reading any body.
+     */
+    private static final String HASH_INDEX_CREATE =
+        "create index notes_hash on notes (hash);";
+
+    /**
+     * The full text index of the bodies. Its docid is the _id of the note, 
+     * the writes here keep it in step with the notes table.
+     * 
+     * FTS3 (all API 8 has) keeps its own copy of every body, whole and not 
+     * compressed, in notes_fts_content; external content and contentless 
+     * tables came with FTS4. So the bodies are on disk twice and the copy 
+     * here is the bigger part for long notes, compressing the body column 
+     * (see BodyCodec) saves at most what the notes table itself takes. 
+     * measureBodyStorage() has the sizes of both.
+     */
+    private static final String FTS_CREATE =
+        "create virtual table notes_fts using fts3 (body);";
+
+    /**
+     * The history of the notes. A revision is the body as it was before an 
+     * update, stored as a delta from the body that replaced it (so the 
+     * newest revision is rebuilt from the note itself). Every 
+     * SNAPSHOT_INTERVAL-th revision is stored whole instead.
+     */
+    private static final String REVISIONS_CREATE =
+        "create table note_revisions (_id integer primary key autoincrement, "
+        + "note_id integer not null, revision integer not null, "
+        + "snapshot integer not null, data text not null, datetime integer not null);";
+    private static final String REVISIONS_INDEX_CREATE =
+        "create unique index note_revisions_note on note_revisions (note_id, revision);";
+
+    /**
+     * The rest of the bodies longer than BODY_CHUNK_LENGTH, the first chunk 
+     * (seq 0) is the body column of the note
+     */
+    private static final String CHUNKS_CREATE =
+        "create table note_chunks (note_id integer not null, seq integer not null, "
+        + "data text not null, codec integer not null default 0, primary key (note_id, seq));";
+
+    /** Where a background migration records how far it got */
+    private static final String MIGRATION_STATE_CREATE =
+        "create table if not exists migration_state (version integer primary key, "
+        + "position integer not null, last integer not null);";
 
     private static final String DATABASE_NAME = "data";
     private static final String DATABASE_TABLE = "notes";
-    private static final int DATABASE_VERSION = 3;
+    private static final String FTS_TABLE = "notes_fts";
+    private static final String REVISIONS_TABLE = "note_revisions";
+    private static final String CHUNKS_TABLE = "note_chunks";
+    private static final int DATABASE_VERSION = 10;
+
+    /** Where the version 4 notes wait to be converted to version 5 */
+    private static final String LEGACY_V4_TABLE = "notes_v4";
+
+    /** 
+     * The oldest version the migrations can start from, anything older is 
+     * dropped and created again
+     */
+    private static final int FIRST_MIGRATABLE_VERSION = 3;
+
+    /** The number of rows converted per transaction by a migration */
+    private static final int MIGRATION_CHUNK_SIZE = 500;
+
+    /** Sql for the precompiled statements (all arguments are bound) */
+    private static final String INSERT_SQL =
+        "insert into " + DATABASE_TABLE + " (" + KEY_BODY + ", " + KEY_DATETIME
+        + ", " + KEY_PREVIEW + ", " + KEY_HASH + ", " + KEY_CODEC + ") values (?, ?, ?, ?, ?)";
+    private static final String UPDATE_SQL =
+        "update " + DATABASE_TABLE + " set " + KEY_BODY + " = ?, " + KEY_DATETIME
+        + " = ?, " + KEY_PREVIEW + " = ?, " + KEY_HASH + " = ?, " + KEY_CODEC + " = ? where " 
+        + KEY_ROWID + " = ?";
+    private static final String HASH_BY_ID_SQL =
+        "select " + KEY_HASH + " from " + DATABASE_TABLE + " where " + KEY_ROWID + " = ?";
+    private static final String CHECKED_BODY_SQL =
+        "select " + KEY_BODY + ", " + KEY_CODEC + ", " + KEY_HASH + ", 0 from " + DATABASE_TABLE 
+        + " where " + KEY_ROWID + " = ? union all select data, codec, null, seq from " 
+        + CHUNKS_TABLE + " where note_id = ? order by 4";
+    private static final String HASH_EXISTS_SQL =
+        "select exists (select 1 from " + DATABASE_TABLE + " where " + KEY_HASH + " = ?)";
+    private static final String DELETE_SQL =
+        "delete from " + DATABASE_TABLE + " where " + KEY_ROWID + " = ?";
+    /** The body as text, null if it is compressed (that is read as a blob) */
+    private static final String BODY_BY_ID_SQL =
+        "select case when " + KEY_CODEC + " = " + BodyCodec.CODEC_TEXT + " then " + KEY_BODY 
+        + " end from " + DATABASE_TABLE + " where " + KEY_ROWID + " = ?";
+
+    private static final String FTS_INSERT_SQL =
+        "insert into " + FTS_TABLE + " (docid, " + KEY_BODY + ") values (?, ?)";
+    private static final String FTS_UPDATE_SQL =
+        "update " + FTS_TABLE + " set " + KEY_BODY + " = ? where docid = ?";
+    private static final String FTS_DELETE_SQL =
+        "delete from " + FTS_TABLE + " where docid = ?";
+
+    private static final String REVISION_INSERT_SQL =
+        "insert into " + REVISIONS_TABLE + " (note_id, " + KEY_REVISION + ", snapshot, data, " 
+        + KEY_DATETIME + ") values (?, ?, ?, ?, ?)";
+    private static final String REVISION_LATEST_SQL =
+        "select coalesce(max(" + KEY_REVISION + "), 0) from " + REVISIONS_TABLE 
+        + " where note_id = ?";
+    private static final String REVISION_TRIM_SQL =
+        "delete from " + REVISIONS_TABLE + " where note_id = ? and " + KEY_REVISION + " <= ?";
+    private static final String REVISION_DELETE_SQL =
+        "delete from " + REVISIONS_TABLE + " where note_id = ?";
+
+    private static final String CHUNK_INSERT_SQL =
+        "insert into " + CHUNKS_TABLE + " (note_id, seq, data, codec) values (?, ?, ?, ?)";
+    private static final String CHUNK_DELETE_SQL =
+        "delete from " + CHUNKS_TABLE + " where note_id = ?";
+    private static final String CHUNK_BY_ID_SQL =
+        "select case when codec = " + BodyCodec.CODEC_TEXT + " then data end from " 
+        + CHUNKS_TABLE + " where note_id = ? and seq = ?";
+
+    /** 
+     * Finds notes by the words in them. The notes with the most hits come 
+     * first, then the most recently edited. offsets() lists four numbers per 
+     * hit split by single spaces, so the notes are ordered by its spaces 
+     * (hits * 4 - 1). Its length is no good, the numbers get longer the 
+     * further into the note a hit is.
+     */
+    private static final String SEARCH_SELECT =
+        "select n." + KEY_ROWID + ", snippet(" + FTS_TABLE + ", '" + SNIPPET_START 
+        + "', '" + SNIPPET_END + "', '\u2026') as " + KEY_PREVIEW + ", n." + KEY_DATETIME 
+        + " from " + FTS_TABLE + " join " + DATABASE_TABLE + " n on n." + KEY_ROWID 
+        + " = " + FTS_TABLE + ".docid where " + FTS_TABLE + " match ?";
+    private static final String SEARCH_ORDER =
+        " order by length(offsets(" + FTS_TABLE + ")) - length(replace(offsets(" 
+        + FTS_TABLE + "), ' ', '')) desc, n." + KEY_DATETIME + " desc"
+        + " limit ";
+
+    /** The number of rows the last update/delete touched. (The statement 
+     * version of this only shows up in later versions of android) */
+    private static final String CHANGES_SQL = "select changes()";
     
     private final Context mCtx;
 
+    /**
+     * One create, update or delete for applyBatch(). Use the static 
+     * factories to build these.
+     */
+    public static class BatchOperation {
+
+        /** The kinds of operation */
+        public static final int CREATE = 0;
+        public static final int UPDATE = 1;
+        public static final int DELETE = 2;
+
+        private final int mType;
+        private final long mRowId;
+        private final String mBody;
+        private final long mDatetime;
+
+        private BatchOperation(int type, long rowId, String body, long datetime) {
+            mType = type;
+            mRowId = rowId;
+            mBody = body;
+            mDatetime = datetime;
+        }
+
+        /**
+         * @param body the body of the new note
+         * @return an operation that creates a note
+         */
+        public static BatchOperation create(String body) {
+            return create(body, System.currentTimeMillis());
+        }
+
+        /**
+         * @param body the body of the new note
+         * @param datetime the time stamp the note gets (an imported note 
+         *        keeps its own)
+         * @return an operation that creates a note
+         */
+        public static BatchOperation create(String body, long datetime) {
+            return new BatchOperation(CREATE, 0, body, datetime);
+        }
+
+        /**
+         * @param rowId id of note to update
+         * @param body value to set note body to
+         * @return an operation that updates a note
+         */
+        public static BatchOperation update(long rowId, String body) {
+            return new BatchOperation(UPDATE, rowId, body, 0);
+        }
+
+        /**
+         * @param rowId id of note to delete
+         * @return an operation that deletes a note
+         */
+        public static BatchOperation delete(long rowId) {
+            return new BatchOperation(DELETE, rowId, null, 0);
+        }
+
+        public int getType() {
+            return mType;
+        }
+
+        public long getRowId() {
+            return mRowId;
+        }
+
+        public String getBody() {
+            return mBody;
+        }
+
+        public long getDatetime() {
+            return mDatetime;
+        }
+    }
+
+    /**
+     * Receives the progress of the background part of the migrations
+     */
+    public interface MigrationListener {
+
+        /**
+         * Called after each chunk of rows is converted
+         * 
+         * @param version the version of the migration that is running
+         * @param done the number of rows converted so far
+         * @param total the number of rows the migration has to convert
+         */
+        void onMigrationProgress(int version, int done, int total);
+    }
+
+    /**
+     * Hears about the notes that were written, once the write is committed. 
+     * A batch (or any other transaction) is told about in one call.
+     */
+    public interface ChangeListener {
+
+        /**
+         * Called on the thread that did the write, keep it short. A note is 
+         * in at most one of the arrays (a note created and then deleted in 
+         * the same transaction is in none).
+         * 
+         * @param inserted the ids of the notes created
+         * @param updated the ids of the notes whose body changed
+         * @param deleted the ids of the notes deleted
+         */
+        void onNotesChanged(long[] inserted, long[] updated, long[] deleted);
+    }
+
+    /**
+     * One step in the history of the schema. The schema change itself is run 
+     * when the DB is opened (in its own transaction), it has to be quick. Any 
+     * row by row conversion is done after that by migrateChunk(), a chunk at 
+     * a time, so a big table doesn't hold up the first launch after an 
+     * upgrade.
+     */
+    private static abstract class Migration {
+
+        /** The version of the DB after this step */
+        final int mVersion;
+
+        Migration(int version) {
+            mVersion = version;
+        }
+
+        /**
+         * Changes the schema from mVersion - 1 to mVersion
+         */
+        abstract void upgrade(SQLiteDatabase db);
+
+        /**
+         * @return the number of rows still to be converted
+         */
+        int countPending(SQLiteDatabase db) {
+            return 0;
+        }
+
+        /**
+         * Converts some of the pending rows
+         * 
+         * @param limit the most rows to convert
+         * @return the number of rows that were converted
+         */
+        int migrateChunk(SQLiteDatabase db, int limit) {
+            return 0;
+        }
+
+        /**
+         * Converts some of the pending rows, for a step that has to read the 
+         * notes the way the adapter does. By default this is 
+         * migrateChunk(db, limit).
+         * 
+         * @param notes the open adapter (its statement lock is held)
+         * @param limit the most rows to convert
+         * @return the number of rows that were converted
+         */
+        int migrateChunk(NotesDbAdapter notes, int limit) {
+            return migrateChunk(notes.mDb, limit);
+        }
+
+        /**
+         * Called once there are no more rows to convert (on every open, so 
+         * this must be cheap when there is nothing to do)
+         */
+        void finish(SQLiteDatabase db) {
+        }
+    }
+
+    /** Every migration, in version order */
+    private static final Migration[] MIGRATIONS = new Migration[] {
+
+        /* Version 4 added the preview column, the old notes get theirs from 
+         * the start of their body */
+        new Migration(4) {
+            @Override
+            void upgrade(SQLiteDatabase db) {
+                db.execSQL("alter table " + DATABASE_TABLE + " add column " 
+                        + KEY_PREVIEW + " text");
+            }
+
+            @Override
+            int countPending(SQLiteDatabase db) {
+                return (int) countRows(db, KEY_PREVIEW + " is null");
+            }
+
+            @Override
+            int migrateChunk(SQLiteDatabase db, int limit) {
+                db.execSQL("update " + DATABASE_TABLE + " set " + KEY_PREVIEW 
+                        + " = substr(" + KEY_BODY + ", 1, " + PREVIEW_LENGTH + ") where " 
+                        + KEY_ROWID + " in (select " + KEY_ROWID + " from " + DATABASE_TABLE 
+                        + " where " + KEY_PREVIEW + " is null limit " + limit + ")");
+                return (int) changes(db);
+            }
+        },
+
+        /* Version 5 stores the time stamp as milliseconds (it used to be a 
+         * locale formatted string) and indexes it. A column can't change its 
+         * type, so the old table is set aside and its rows are moved over a 
+         * chunk at a time, keeping their ids. */
+        new Migration(5) {
+
+            /** The format version 4 wrote the time stamps in */
+            private final DateFormat mLegacyFormat = DateFormat.getDateTimeInstance();
+
+            @Override
+            void upgrade(SQLiteDatabase db) {
+                /* The table as it was in version 5 (later steps add to it) */
+                db.execSQL("alter table " + DATABASE_TABLE + " rename to " + LEGACY_V4_TABLE);
+                db.execSQL("create table notes (_id integer primary key autoincrement, "
+                        + "body text not null, datetime integer not null, preview text);");
+                db.execSQL(DATETIME_INDEX_CREATE);
+
+                /* The rename took the id sequence with it, the new notes must 
+                 * not reuse the ids of the ones still waiting to be moved */
+                db.execSQL("insert into sqlite_sequence (name, seq) select '" 
+                        + DATABASE_TABLE + "', seq from sqlite_sequence where name = '" 
+                        + LEGACY_V4_TABLE + "'");
+            }
+
+            @Override
+            int countPending(SQLiteDatabase db) {
+                if (!tableExists(db, LEGACY_V4_TABLE)) {
+                    return 0;
+                }
+                
+                SQLiteStatement count = db.compileStatement(
+                        "select count(*) from " + LEGACY_V4_TABLE);
+                try {
+                    return (int) count.simpleQueryForLong();
+                } finally {
+                    count.close();
+                }
+            }
+
+            @Override
+            int migrateChunk(SQLiteDatabase db, int limit) {
+                /* Newest first, so the top of the list fills in first */
+                Cursor legacy = db.query(LEGACY_V4_TABLE, new String[] 
+                        {KEY_ROWID, KEY_BODY, KEY_DATETIME, KEY_PREVIEW}, 
+                        null, null, null, null, KEY_ROWID + " desc", Integer.toString(limit));
+                SQLiteStatement insert = db.compileStatement("insert into " + DATABASE_TABLE 
+                        + " (" + KEY_ROWID + ", " + KEY_BODY + ", " + KEY_DATETIME + ", " 
+                        + KEY_PREVIEW + ") values (?, ?, ?, ?)");
+                SQLiteStatement delete = db.compileStatement("delete from " 
+                        + LEGACY_V4_TABLE + " where " + KEY_ROWID + " = ?");
+                int moved = 0;
+
+                try {
+                    while (legacy.moveToNext()) {
+                        String body = legacy.getString(1);
+                        String preview = legacy.isNull(3) ? buildPreview(body) : legacy.getString(3);
+
+                        insert.bindLong(1, legacy.getLong(0));
+                        insert.bindString(2, body);
+                        insert.bindLong(3, parseLegacyDate(legacy.getString(2)));
+                        insert.bindString(4, preview);
+                        insert.executeInsert();
+
+                        delete.bindLong(1, legacy.getLong(0));
+                        delete.execute();
+                        moved++;
+                    }
+                } finally {
+                    legacy.close();
+                    insert.close();
+                    delete.close();
+                }
+                return moved;
+            }
+
+            @Override
+            void finish(SQLiteDatabase db) {
+                db.execSQL("drop table if exists " + LEGACY_V4_TABLE);
+            }
+
+            /**
+             * @return the time stamp in milliseconds, 0 if it can't be read 
+             *         (the locale may have changed since it was written)
+             */
+            private long parseLegacyDate(String datetime) {
+                try {
+                    return mLegacyFormat.parse(datetime).getTime();
+                } catch (ParseException ex) {
+                    return 0;
+                }
+            }
+        },
+
+        /* Version 6 added the full text index. The notes that are there at 
+         * the upgrade are indexed in chunks (in _id order), the new ones are 
+         * indexed as they are written. A note saved since the upgrade may 
+         * already be split in chunks or compressed, so the bodies are read 
+         * through readBody() and the whole text is indexed. */
+        new Migration(6) {
+            @Override
+            void upgrade(SQLiteDatabase db) {
+                db.execSQL(FTS_CREATE);
+                startBackfill(db, mVersion);
+            }
+
+            @Override
+            int countPending(SQLiteDatabase db) {
+                long[] state = getBackfill(db, mVersion);
+
+                return state == null ? 0 : (int) countRows(db, 
+                        KEY_ROWID + " > " + state[0] + " and " + KEY_ROWID + " <= " + state[1]);
+            }
+
+            @Override
+            int migrateChunk(NotesDbAdapter notes, int limit) {
+                SQLiteDatabase db = notes.mDb;
+                long[] state = getBackfill(db, mVersion);
+
+                if (state == null) {
+                    return 0;
+                }
+
+                Cursor ids = db.rawQuery("select " + KEY_ROWID + " from " + DATABASE_TABLE 
+                        + " where " + KEY_ROWID + " > " + state[0] + " and " + KEY_ROWID 
+                        + " <= " + state[1] + " order by " + KEY_ROWID + " limit " + limit, null);
+                long position = state[0];
+                int done = 0;
+
+                try {
+                    while (ids.moveToNext()) {
+                        position = ids.getLong(0);
+
+                        String body = notes.readBody(position);
+
+                        if (body != null) {
+                            notes.mFtsInsertStmt.bindLong(1, position);
+                            notes.mFtsInsertStmt.bindString(2, body);
+                            notes.mFtsInsertStmt.execute();
+                        }
+                        done++;
+                    }
+                } finally {
+                    ids.close();
+                }
+
+                setBackfillPosition(db, mVersion, position);
+                return done;
+            }
+
+            @Override
+            void finish(SQLiteDatabase db) {
+                endBackfill(db, mVersion);
+            }
+        },
+
+        /* Version 7 added the revision history (it starts empty) */
+        new Migration(7) {
+            @Override
+            void upgrade(SQLiteDatabase db) {
+                db.execSQL(REVISIONS_CREATE);
+                db.execSQL(REVISIONS_INDEX_CREATE);
+            }
+        },
+
+        /* Version 8 splits the long bodies into chunks. It is done in sql 
+         * (substr counts characters) so the long bodies are never read into 
+         * a cursor. It runs after the version 5 move, so the notes that 
+         * were still waiting there get split as well. */
+        new Migration(8) {
+            @Override
+            void upgrade(SQLiteDatabase db) {
+                db.execSQL(CHUNKS_CREATE);
+                startBackfill(db, mVersion);
+            }
+
+            @Override
+            int countPending(SQLiteDatabase db) {
+                /* a compressed body (version 10) is a blob, and already split */
+                return getBackfill(db, mVersion) == null ? 0 : (int) countRows(db, 
+                        "typeof(" + KEY_BODY + ") = 'text' and length(" + KEY_BODY + ") > " 
+                        + BODY_CHUNK_LENGTH);
+            }
+
+            @Override
+            int migrateChunk(SQLiteDatabase db, int limit) {
+                if (getBackfill(db, mVersion) == null) {
+                    return 0;
+                }
+
+                String notes = KEY_ROWID + " in (select " + KEY_ROWID + " from " 
+                        + DATABASE_TABLE + " where typeof(" + KEY_BODY + ") = 'text' and length(" 
+                        + KEY_BODY + ") > " + BODY_CHUNK_LENGTH + " order by " + KEY_ROWID + " limit " + limit + ")";
+
+                /* The history of these notes was kept against the whole 
+                 * body, it can't be carried over (see addRevision()) */
+                db.execSQL("delete from " + REVISIONS_TABLE + " where note_id in (select " 
+                        + KEY_ROWID + " from " + DATABASE_TABLE + " where " + notes + ")");
+
+                for (int seq = 1; ; seq++) {
+                    db.execSQL("insert into " + CHUNKS_TABLE + " (note_id, seq, data) select " 
+                            + KEY_ROWID + ", " + seq + ", substr(" + KEY_BODY + ", " 
+                            + (seq * BODY_CHUNK_LENGTH + 1) + ", " + BODY_CHUNK_LENGTH 
+                            + ") from " + DATABASE_TABLE + " where " + notes + " and length(" 
+                            + KEY_BODY + ") > " + (seq * BODY_CHUNK_LENGTH));
+
+                    if (changes(db) == 0) {
+                        break;
+                    }
+                }
+
+                /* The first chunk stays, this also takes the notes out of 
+                 * the next chunk's select */
+                db.execSQL("update " + DATABASE_TABLE + " set " + KEY_BODY + " = substr(" 
+                        + KEY_BODY + ", 1, " + BODY_CHUNK_LENGTH + ") where " + notes);
+                return (int) changes(db);
+            }
+
+            @Override
+            void finish(SQLiteDatabase db) {
+                endBackfill(db, mVersion);
+            }
+        },
+
+        /* Version 9 added the content hash. Only java can work it out, so 
+         * the notes there are hashed a chunk of rows at a time (the ones 
+         * without a hash are found through its index). */
+        new Migration(9) {
+            @Override
+            void upgrade(SQLiteDatabase db) {
+                db.execSQL("alter table " + DATABASE_TABLE + " add column " 
+                        + KEY_HASH + " integer");
+                db.execSQL(HASH_INDEX_CREATE);
+            }
+
+            @Override
+            int countPending(SQLiteDatabase db) {
+                return (int) countRows(db, KEY_HASH + " is null");
+            }
+
+            @Override
+            int migrateChunk(SQLiteDatabase db, int limit) {
+                Cursor notes = db.query(DATABASE_TABLE, new String[] {KEY_ROWID, KEY_BODY}, 
+                        KEY_HASH + " is null", null, null, null, null, Integer.toString(limit));
+                SQLiteStatement update = db.compileStatement("update " + DATABASE_TABLE 
+                        + " set " + KEY_HASH + " = ? where " + KEY_ROWID + " = ?");
+                List<String> chunks = new ArrayList<String>();
+                int hashed = 0;
+
+                try {
+                    while (notes.moveToNext()) {
+                        long rowId = notes.getLong(0);
+
+                        chunks.clear();
+                        chunks.add(notes.getString(1));
+
+                        Cursor rest = db.query(CHUNKS_TABLE, new String[] {"data"}, 
+                                "note_id = ?", new String[] {Long.toString(rowId)}, 
+                                null, null, "seq");
+                        try {
+                            while (rest.moveToNext()) {
+                                chunks.add(rest.getString(0));
+                            }
+                        } finally {
+                            rest.close();
+                        }
+
+                        update.bindLong(1, ContentHash.of(chunks));
+                        update.bindLong(2, rowId);
+                        update.execute();
+                        hashed++;
+                    }
+                } finally {
+                    notes.close();
+                    update.close();
+                }
+                return hashed;
+            }
+        },
+
+        /* Version 10 compresses the long bodies (and chunks). The notes 
+         * there are compressed in _id order a chunk of rows at a time, the 
+         * new ones are compressed as they are written. */
+        new Migration(10) {
+            @Override
+            void upgrade(SQLiteDatabase db) {
+                db.execSQL("alter table " + DATABASE_TABLE + " add column " + KEY_CODEC 
+                        + " integer not null default 0");
+                db.execSQL("alter table " + CHUNKS_TABLE 
+                        + " add column codec integer not null default 0");
+                startBackfill(db, mVersion);
+            }
+
+            @Override
+            int countPending(SQLiteDatabase db) {
+                long[] state = getBackfill(db, mVersion);
+
+                return state == null ? 0 : (int) countRows(db, 
+                        KEY_ROWID + " > " + state[0] + " and " + KEY_ROWID + " <= " + state[1]);
+            }
+
+            @Override
+            int migrateChunk(SQLiteDatabase db, int limit) {
+                long[] state = getBackfill(db, mVersion);
+
+                if (state == null) {
+                    return 0;
+                }
+
+                /* Only the bodies that may be worth it are read */
+                Cursor notes = db.rawQuery("select " + KEY_ROWID + ", case when " + KEY_CODEC 
+                        + " = " + BodyCodec.CODEC_TEXT + " and length(" + KEY_BODY + ") >= " 
+                        + BodyCodec.COMPRESS_THRESHOLD + " then " + KEY_BODY + " end from " 
+                        + DATABASE_TABLE + " where " + KEY_ROWID + " > " + state[0] + " and " 
+                        + KEY_ROWID + " <= " + state[1] + " order by " + KEY_ROWID + " limit " 
+                        + limit, null);
+                SQLiteStatement updateNote = db.compileStatement("update " + DATABASE_TABLE 
+                        + " set " + KEY_BODY + " = ?, " + KEY_CODEC + " = " 
+                        + BodyCodec.CODEC_DEFLATE + " where " + KEY_ROWID + " = ?");
+                SQLiteStatement updateChunk = db.compileStatement("update " + CHUNKS_TABLE 
+                        + " set data = ?, codec = " + BodyCodec.CODEC_DEFLATE 
+                        + " where note_id = ? and seq = ?");
+                long position = state[0];
+                int done = 0;
+
+                try {
+                    while (notes.moveToNext()) {
+                        position = notes.getLong(0);
+
+                        if (!notes.isNull(1)) {
+                            compressRow(updateNote, notes.getString(1), position, -1);
+                        }
+
+                        Cursor chunks = db.rawQuery("select seq, data from " + CHUNKS_TABLE 
+                                + " where note_id = ? and codec = " + BodyCodec.CODEC_TEXT, 
+                                new String[] {Long.toString(position)});
+                        try {
+                            while (chunks.moveToNext()) {
+                                compressRow(updateChunk, chunks.getString(1), position, 
+                                        chunks.getInt(0));
+                            }
+                        } finally {
+                            chunks.close();
+                        }
+                        done++;
+                    }
+                } finally {
+                    notes.close();
+                    updateNote.close();
+                    updateChunk.close();
+                }
+
+                setBackfillPosition(db, mVersion, position);
+                return done;
+            }
+
+            @Override
+            void finish(SQLiteDatabase db) {
+                endBackfill(db, mVersion);
+            }
+
+            /**
+             * Stores the text compressed, if that makes it smaller
+             * 
+             * @param seq the chunk, -1 for the body column of the note
+             */
+            private void compressRow(SQLiteStatement update, String text, long rowId, int seq) {
+                byte[] compressed = BodyCodec.compress(text);
+
+                if (compressed == null) {
+                    return;
+                }
+
+                update.bindBlob(1, compressed);
+                update.bindLong(2, rowId);
+                if (seq >= 0) {
+                    update.bindLong(3, seq);
+                }
+                update.execute();
+            }
+        },
+    };
+
     private static class DatabaseHelper extends SQLiteOpenHelper {
 
         DatabaseHelper(Context context) {
@@ -75,14 +914,40 @@ public class NotesDbAdapter {
         public void onCreate(SQLiteDatabase db) {
 
             db.execSQL(DATABASE_CREATE);
+            db.execSQL(DATETIME_INDEX_CREATE);
+            db.execSQL(HASH_INDEX_CREATE);
+            db.execSQL(FTS_CREATE);
+            db.execSQL(REVISIONS_CREATE);
+            db.execSQL(REVISIONS_INDEX_CREATE);
+            db.execSQL(CHUNKS_CREATE);
         }
 
         @Override
         public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-            Log.w(TAG, "Upgrading database from version " + oldVersion + " to "
-                    + newVersion + ", which will destroy all old data");
-            db.execSQL("DROP TABLE IF EXISTS notes");
-            onCreate(db);
+            if (oldVersion < FIRST_MIGRATABLE_VERSION) {
+                Log.w(TAG, "Upgrading database from version " + oldVersion + " to "
+                        + newVersion + ", which will destroy all old data");
+                db.execSQL("DROP TABLE IF EXISTS notes");
+                onCreate(db);
+                return;
+            }
+
+            /* Runs the steps in order, each in its own transaction */
+            for (Migration migration : MIGRATIONS) {
+                if (migration.mVersion <= oldVersion || migration.mVersion > newVersion) {
+                    continue;
+                }
+
+                Log.w(TAG, "Upgrading database to version " + migration.mVersion);
+
+                db.beginTransaction();
+                try {
+                    migration.upgrade(db);
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+            }
         }
     }
 
@@ -106,19 +971,157 @@ public class NotesDbAdapter {
      * @throws SQLException if the database could be neither opened or created
      */
     public NotesDbAdapter open() throws SQLException {
-        mDbHelper = new DatabaseHelper(mCtx);
-        mDb = mDbHelper.getWritableDatabase();
-        return this;
+        long start = Metrics.start();
+        try {
+            /* One helper, however many times this is opened and closed */
+            if (mDbHelper == null) {
+                mDbHelper = new DatabaseHelper(mCtx);
+            }
+            mDb = mDbHelper.getWritableDatabase();
+            mReadDb = enableWriteAheadLog() ? openReader() : mDb;
+
+            synchronized (mStatementLock) {
+                mInsertStmt = mDb.compileStatement(INSERT_SQL);
+                mUpdateStmt = mDb.compileStatement(UPDATE_SQL);
+                mDeleteStmt = mDb.compileStatement(DELETE_SQL);
+                mBodyByIdStmt = mDb.compileStatement(BODY_BY_ID_SQL);
+                mChangesStmt = mDb.compileStatement(CHANGES_SQL);
+                mFtsInsertStmt = mDb.compileStatement(FTS_INSERT_SQL);
+                mFtsUpdateStmt = mDb.compileStatement(FTS_UPDATE_SQL);
+                mFtsDeleteStmt = mDb.compileStatement(FTS_DELETE_SQL);
+                mRevisionInsertStmt = mDb.compileStatement(REVISION_INSERT_SQL);
+                mRevisionLatestStmt = mDb.compileStatement(REVISION_LATEST_SQL);
+                mRevisionTrimStmt = mDb.compileStatement(REVISION_TRIM_SQL);
+                mRevisionDeleteStmt = mDb.compileStatement(REVISION_DELETE_SQL);
+                mChunkInsertStmt = mDb.compileStatement(CHUNK_INSERT_SQL);
+                mChunkDeleteStmt = mDb.compileStatement(CHUNK_DELETE_SQL);
+                mChunkByIdStmt = mDb.compileStatement(CHUNK_BY_ID_SQL);
+                mHashByIdStmt = mDb.compileStatement(HASH_BY_ID_SQL);
+                mHashExistsStmt = mDb.compileStatement(HASH_EXISTS_SQL);
+            }
+            return this;
+        } finally {
+            T_OPEN.stop(start);
+        }
     }
 
     /**
-     * Closes the DB
+     * Closes the DB (and the statements compiled against it)
      */
     public void close() {
-        mDbHelper.close();
+        synchronized (mStatementLock) {
+            if (mInsertStmt != null) {
+                mInsertStmt.close();
+                mUpdateStmt.close();
+                mDeleteStmt.close();
+                mBodyByIdStmt.close();
+                mChangesStmt.close();
+                mFtsInsertStmt.close();
+                mFtsUpdateStmt.close();
+                mFtsDeleteStmt.close();
+                mRevisionInsertStmt.close();
+                mRevisionLatestStmt.close();
+                mRevisionTrimStmt.close();
+                mRevisionDeleteStmt.close();
+                mChunkInsertStmt.close();
+                mChunkDeleteStmt.close();
+                mChunkByIdStmt.close();
+                mHashByIdStmt.close();
+                mHashExistsStmt.close();
+                mInsertStmt = null;
+            }
+        }
+
+        if (mReadDb != null && mReadDb != mDb) {
+            mReadDb.close();
+        }
+        mReadDb = null;
+
+        /* open() may have failed, or never run (the close is delayed) */
+        if (mDbHelper != null) {
+            mDbHelper.close();
+        }
+    }
+
+    /**
+     * Switches the DB to write ahead logging, through the framework so it 
+     * keeps managing the journal itself. Before Honeycomb (API 11) there is 
+     * no way to ask for it and the DB stays in its rollback journal.
+     * 
+     * @return true if the DB is in WAL mode
+     */
+    private boolean enableWriteAheadLog() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return false;
+        }
+
+        try {
+            return mDb.enableWriteAheadLogging();
+        } catch (SQLException ex) {
+            Log.w(TAG, "could not turn on write ahead logging", ex);
+            return false;
+        }
+    }
+
+    /**
+     * @return a read only connection to the DB, or mDb if it can't be opened
+     */
+    private SQLiteDatabase openReader() {
+        try {
+            return SQLiteDatabase.openDatabase(mCtx.getDatabasePath(DATABASE_NAME).getPath(), 
+                    null, SQLiteDatabase.OPEN_READONLY);
+        } catch (SQLException ex) {
+            Log.w(TAG, "could not open a reader, the writer does the reads", ex);
+            return mDb;
+        }
     }
 
 
+    /**
+     * Runs the row conversions the migrations left to do, one chunk per 
+     * transaction. This can take a while on a big table, so call it off the 
+     * UI thread after open(). It does nothing when there is nothing pending.
+     * 
+     * @param listener receives the progress (can be null)
+     */
+    public void runPendingMigrations(MigrationListener listener) {
+        long start = Metrics.start();
+        try {
+            for (Migration migration : MIGRATIONS) {
+                int total = migration.countPending(mDb);
+                int done = 0;
+
+                while (done < total) {
+                    int converted;
+
+                    /* The lock before the transaction, like every write */
+                    synchronized (mStatementLock) {
+                        mDb.beginTransaction();
+                        try {
+                            converted = migration.migrateChunk(this, MIGRATION_CHUNK_SIZE);
+                            mDb.setTransactionSuccessful();
+                        } finally {
+                            mDb.endTransaction();
+                        }
+                    }
+
+                    if (converted == 0) {
+                        break;
+                    }
+
+                    done = Math.min(total, done + converted);
+
+                    if (listener != null) {
+                        listener.onMigrationProgress(migration.mVersion, done, total);
+                    }
+                }
+                migration.finish(mDb);
+            }
+        } finally {
+            T_MIGRATE.stop(start);
+        }
+    }
+
     /**
      * Create a new note using the title and body provided. If the note is
      * successfully created return the new rowId for that note, otherwise return
@@ -130,17 +1133,80 @@ public class NotesDbAdapter {
      */
     public long createNote(String body) {
     	
-        ContentValues initialValues = new ContentValues();
-        
         /* Gets the save time */
-        String datetime = getDateString();
-        
-        initialValues.put(KEY_DATETIME, datetime);
-        initialValues.put(KEY_BODY, body);
+        return createNote(body, System.currentTimeMillis());
+    }
 
-        Log.e("DB", "added "+body+" "+datetime);
-        
-        return mDb.insert(DATABASE_TABLE, null, initialValues);
+    /**
+     * Create a new note with a given time stamp (see createNote(String))
+     * 
+     * @param body the body of the note
+     * @param datetime the time stamp of the note
+     * @return rowId or -1 if failed
+     */
+    public long createNote(String body, long datetime) {
+        return insertNote(splitBody(body), datetime);
+    }
+
+    /**
+     * Creates a note from the chunks of its body
+     * 
+     * @return rowId or -1 if failed
+     */
+    private long insertNote(List<String> chunks, long datetime) {
+        long start = Metrics.start();
+        try {
+            boolean committed = false;
+
+            synchronized (mStatementLock) {
+                /* The note, its chunks and its index entry go in together */
+                mDb.beginTransaction();
+                try {
+                    long rowId = insertNoteLocked(chunks, datetime);
+
+                    mDb.setTransactionSuccessful();
+                    committed = true;
+                    return rowId;
+                } catch (SQLException ex) {
+                    Log.e(TAG, "could not insert note", ex);
+                    return -1;
+                } finally {
+                    mDb.endTransaction();
+                    publishChanges(committed);
+                }
+            }
+        } finally {
+            T_INSERT.stop(start);
+        }
+    }
+
+    /**
+     * Inserts a note, its chunks and its index entry. The caller holds 
+     * mStatementLock and a transaction.
+     * 
+     * @return rowId of the new note
+     * @throws SQLException if the insert failed (roll the transaction back)
+     */
+    private long insertNoteLocked(List<String> chunks, long datetime) {
+        String head = chunks.get(0);
+
+        mInsertStmt.bindLong(5, bindChunk(mInsertStmt, 1, head));
+        mInsertStmt.bindLong(2, datetime);
+        mInsertStmt.bindString(3, buildPreview(head));
+        mInsertStmt.bindLong(4, ContentHash.of(chunks));
+        long rowId = mInsertStmt.executeInsert();
+
+        if (rowId < 0) {
+            throw new SQLException("could not insert note");
+        }
+        writeChunks(rowId, chunks);
+
+        mFtsInsertStmt.bindLong(1, rowId);
+        mFtsInsertStmt.bindString(2, joinChunks(chunks));
+        mFtsInsertStmt.execute();
+
+        noteChanged(rowId, NOTE_INSERTED);
+        return rowId;
     }
 
     /**
@@ -150,66 +1216,1400 @@ public class NotesDbAdapter {
      * @return true if deleted, false otherwise
      */
     public boolean deleteNote(long rowId) {
+        long start = Metrics.start();
+        try {
+            boolean committed = false;
 
-    	Log.e("DB", "deleted "+rowId);
-    	
-        return mDb.delete(DATABASE_TABLE, KEY_ROWID + "=" + rowId, null) > 0;
+            synchronized (mStatementLock) {
+                mDb.beginTransaction();
+                try {
+                    boolean deleted = deleteNoteLocked(rowId);
+
+                    mDb.setTransactionSuccessful();
+                    committed = true;
+                    return deleted;
+                } finally {
+                    mDb.endTransaction();
+                    publishChanges(committed);
+                }
+            }
+        } finally {
+            T_DELETE.stop(start);
+        }
     }
 
     /**
-     * Return a Cursor over the list of all notes in the database
+     * Deletes a note with its index entry, revisions and chunks. The caller 
+     * holds mStatementLock and a transaction.
      * 
-     * @return Cursor over all notes
+     * @return true if deleted, false if there was no such note
      */
-    public Cursor fetchAllNotes() {
+    private boolean deleteNoteLocked(long rowId) {
+        NoteCache.remove(rowId);
+
+        mDeleteStmt.bindLong(1, rowId);
+        mDeleteStmt.execute();
+        boolean deleted = mChangesStmt.simpleQueryForLong() > 0;
+
+        mFtsDeleteStmt.bindLong(1, rowId);
+        mFtsDeleteStmt.execute();
 
-        return mDb.query(DATABASE_TABLE, REQUEST_LIST, null, null, null, null, null);
+        mRevisionDeleteStmt.bindLong(1, rowId);
+        mRevisionDeleteStmt.execute();
+
+        mChunkDeleteStmt.bindLong(1, rowId);
+        mChunkDeleteStmt.execute();
+
+        if (deleted) {
+            noteChanged(rowId, NOTE_DELETED);
+        }
+        return deleted;
     }
 
     /**
-     * Return a Cursor positioned at the note that matches the given rowId
+     * Return a Cursor over one page of notes, most recently edited first. The 
+     * pages are keyed on the time stamp (and the rowId for notes saved in the 
+     * same millisecond) so fetching a page is an index scan that costs the 
+     * same no matter how far down the list it is.
      * 
-     * @param rowId id of note to retrieve
-     * @return Cursor positioned to matching note, if found
-     * @throws SQLException if note could not be found/retrieved
+     * @param afterDatetime the time stamp of the last note of the previous 
+     *        page
+     * @param afterRowId the rowId of the last note of the previous page, or 0 
+     *        for the first page
+     * @param limit the maximum number of notes in the page
+     * @return Cursor over _id, preview and datetime of the notes in the page
      */
-    public Cursor fetchNote(long rowId) throws SQLException {
+    public Cursor fetchNotesPage(long afterDatetime, long afterRowId, int limit) {
+        long start = Metrics.start();
+        try {
+            String selection = null;
+            String[] selectionArgs = null;
+
+            if (afterRowId > 0) {
+                String datetime = Long.toString(afterDatetime);
 
-        Cursor mCursor =
-            mDb.query(true, DATABASE_TABLE, REQUEST_LIST, KEY_ROWID + "=" + rowId, null,
-                    null, null, null, null);
-        if (mCursor != null) {
-            mCursor.moveToFirst();
+                /* The same rows as "datetime < ? or (datetime = ? and _id < ?)", 
+                 * but written so the first term bounds the index range (with 
+                 * an or at the top SQLite scans the index from the start) */
+                selection = KEY_DATETIME + " <= ? and (" + KEY_DATETIME + " < ? or " 
+                        + KEY_ROWID + " < ?)";
+                selectionArgs = new String[] {datetime, datetime, Long.toString(afterRowId)};
+            }
+
+            return mReadDb.query(DATABASE_TABLE, PAGE_LIST, selection, selectionArgs, 
+                    null, null, KEY_DATETIME + " desc, " + KEY_ROWID + " desc", 
+                    Integer.toString(limit));
+        } finally {
+            T_FETCH_PAGE.stop(start);
         }
-        return mCursor;
+    }
 
+    /**
+     * Return a Cursor over the notes saved at or after a time, in _id order. 
+     * It has no bodies (read those with openBodyReader()), so it stays small 
+     * however many notes there are.
+     * 
+     * @param datetime the earliest time stamp to return, 0 for all the notes
+     * @return Cursor over _id and datetime of the notes
+     */
+    public Cursor fetchNotesSince(long datetime) {
+        long start = Metrics.start();
+        try {
+            return mReadDb.query(DATABASE_TABLE, new String[] {KEY_ROWID, KEY_DATETIME}, 
+                    KEY_DATETIME + " >= ?", new String[] {Long.toString(datetime)}, 
+                    null, null, KEY_ROWID);
+        } finally {
+            T_FETCH_SINCE.stop(start);
+        }
     }
 
     /**
-     * Update the note using the details provided. The note to be updated is
-     * specified using the rowId, and it is altered to use the title and body
-     * values passed in
+     * Return a Cursor over the list rows of some notes (the ones a change 
+     * was heard about, see ChangeListener)
      * 
-     * @param rowId id of note to update
-     * @param title value to set note title to
-     * @param body value to set note body to
-     * @return true if the note was successfully updated, false otherwise
+     * @param rowIds ids of the notes, the ones that are gone are left out
+     * @return Cursor over _id, preview and datetime of the notes
      */
-    public boolean updateNote(long rowId, String body) {
-        ContentValues args = new ContentValues();
-        
-        /* Gets the save time */
-        String datetime = getDateString();
-        
-        args.put(KEY_DATETIME, datetime);
-        args.put(KEY_BODY, body);
+    public Cursor fetchNotes(long[] rowIds) {
+        long start = Metrics.start();
+        try {
+            StringBuilder selection = new StringBuilder(KEY_ROWID).append(" in (");
 
-        Log.e("DB", "updated "+rowId+" "+datetime+" "+body);
-        
-        return mDb.update(DATABASE_TABLE, args, KEY_ROWID + "=" + rowId, null) > 0;
+            for (int i = 0; i < rowIds.length; i++) {
+                if (i > 0) {
+                    selection.append(',');
+                }
+                selection.append(rowIds[i]);
+            }
+            selection.append(')');
+
+            return mReadDb.query(DATABASE_TABLE, PAGE_LIST, selection.toString(), null, 
+                    null, null, null);
+        } finally {
+            T_FETCH_NOTES.stop(start);
+        }
     }
 
-	private String getDateString() {
-		return DateFormat.getDateTimeInstance().format(new Date());
-	}
+    /**
+     * Searches the notes for the words in query. Every word has to be in the 
+     * note, and a word matches anything that starts with it (so a partly 
+     * typed word still finds something).
+     * 
+     * @param query the words to look for, as the user typed them
+     * @param limit the maximum number of notes to return
+     * @param withinIds only these notes are searched (used to narrow down an 
+     *        earlier search), null to search them all
+     * @return Cursor over the _id, the snippet (as preview, with the hits 
+     *         between SNIPPET_START and SNIPPET_END) and datetime of the best 
+     *         matches, or null if query has no words in it
+     */
+    public Cursor searchNotes(String query, int limit, long[] withinIds) {
+        long start = Metrics.start();
+        try {
+            String match = buildMatch(query);
+
+            if (match == null || (withinIds != null && withinIds.length == 0)) {
+                return null;
+            }
+
+            StringBuilder sql = new StringBuilder(SEARCH_SELECT);
+
+            if (withinIds != null) {
+                sql.append(" and " + FTS_TABLE + ".docid in (");
+
+                for (int i = 0; i < withinIds.length; i++) {
+                    if (i > 0) {
+                        sql.append(',');
+                    }
+                    sql.append(withinIds[i]);
+                }
+                sql.append(')');
+            }
+            sql.append(SEARCH_ORDER).append(limit);
+
+            return mReadDb.rawQuery(sql.toString(), new String[] {match});
+        } finally {
+            T_SEARCH.stop(start);
+        }
+    }
+
+    /**
+     * Turns what the user typed into a full text query. Anything that isn't 
+     * a letter or a digit is dropped, so the user can't type a syntax error.
+     * 
+     * @return the query or null if there are no words in it
+     */
+    static String buildMatch(String query) {
+        StringBuilder match = new StringBuilder();
+        int start = -1;
+
+        for (int i = 0; i <= query.length(); i++) {
+            boolean wordChar = i < query.length() 
+                    && Character.isLetterOrDigit(query.charAt(i));
+
+            if (wordChar && start < 0) {
+                start = i;
+            } else if (!wordChar && start >= 0) {
+                if (match.length() > 0) {
+                    match.append(' ');
+                }
+                match.append(query, start, i).append('*');
+                start = -1;
+            }
+        }
+        return match.length() == 0 ? null : match.toString();
+    }
+
+    /**
+     * Return a Cursor positioned at the note that matches the given rowId. 
+     * The body in it is only the first chunk of a long note, and a blob if 
+     * it is compressed (see KEY_CODEC), use fetchNoteBody() or 
+     * openBodyReader() for the text.
+     * 
+     * @param rowId id of note to retrieve
+     * @return Cursor positioned to matching note, if found
+     * @throws SQLException if note could not be found/retrieved
+     */
+    public Cursor fetchNote(long rowId) throws SQLException {
+        long start = Metrics.start();
+        try {
+            Cursor mCursor =
+                mDb.query(true, DATABASE_TABLE, REQUEST_LIST, KEY_ROWID + "=?",
+                        new String[] {Long.toString(rowId)}, null, null, null, null);
+            if (mCursor != null) {
+                mCursor.moveToFirst();
+            }
+            return mCursor;
+        } finally {
+            T_FETCH_NOTE.stop(start);
+        }
+    }
+
+    /**
+     * Return just the body of the note that matches the given rowId. A 
+     * note read recently comes from the NoteCache, otherwise this uses 
+     * precompiled statements so no cursor is built, a long body is read a 
+     * chunk at a time.
+     * 
+     * @param rowId id of note to retrieve
+     * @return the body of the note or null if there is no such note
+     */
+    public String fetchNoteBody(long rowId) {
+        long start = Metrics.start();
+        try {
+            String body = NoteCache.get(rowId);
+
+            if (body != null) {
+                C_BODY_CACHE_HITS.increment();
+                return body;
+            }
+            C_BODY_CACHE_MISSES.increment();
+
+            long generation = NoteCache.generation();
+
+            body = readBody(rowId);
+            if (body != null) {
+                NoteCache.put(rowId, body, generation);
+            }
+            return body;
+        } finally {
+            T_FETCH_BODY.stop(start);
+        }
+    }
+
+    /**
+     * Reads the whole body of a note from the DB. With a reader connection 
+     * (WAL) it is read there, so it does not wait for the writes; a read 
+     * that can't be checked is done again on the writer. Inside a 
+     * transaction the writer reads it, the reader would not see the 
+     * transaction's own changes.
+     * 
+     * @return the body or null if there is no such note
+     */
+    private String readBody(long rowId) {
+        if (mReadDb != mDb && !mDb.inTransaction()) {
+            String body = readCheckedBody(rowId);
+
+            if (body != null) {
+                return body;
+            }
+        }
+        return readLockedBody(rowId);
+    }
+
+    /**
+     * Reads all the chunks of a body on the reader in one query. A long 
+     * body may not fit the cursor's window, and the query that refills it 
+     * can see a newer save, so the chunks are checked against the hash 
+     * of the body that was read with them.
+     * 
+     * @return the body, or null if there is no such note or the chunks 
+     *         don't match the hash (or there is no hash yet)
+     */
+    private String readCheckedBody(long rowId) {
+        String id = Long.toString(rowId);
+        Cursor chunks = mReadDb.rawQuery(CHECKED_BODY_SQL, new String[] {id, id});
+
+        try {
+            if (!chunks.moveToFirst() || chunks.isNull(2)) {
+                return null;
+            }
+
+            long hash = chunks.getLong(2);
+            List<String> body = new ArrayList<String>(chunks.getCount());
+
+            do {
+                body.add(chunks.getInt(1) == BodyCodec.CODEC_DEFLATE 
+                        ? BodyCodec.decompress(chunks.getBlob(0)) : chunks.getString(0));
+            } while (chunks.moveToNext());
+
+            return ContentHash.of(body) == hash ? joinChunks(body) : null;
+        } finally {
+            chunks.close();
+        }
+    }
+
+    /**
+     * Reads the whole body of a note on the writer, holding the statement 
+     * lock and in one transaction so all the chunks come from the same save
+     * 
+     * @return the body or null if there is no such note
+     */
+    private String readLockedBody(long rowId) {
+        synchronized (mStatementLock) {
+            mDb.beginTransaction();
+            try {
+                String head = readChunk(rowId, 0);
+                String chunk = head == null ? null : readChunk(rowId, 1);
+
+                if (chunk == null) {
+                    mDb.setTransactionSuccessful();
+                    return head;
+                }
+
+                StringBuilder body = new StringBuilder(head);
+
+                for (int seq = 2; chunk != null; seq++) {
+                    body.append(chunk);
+                    chunk = readChunk(rowId, seq);
+                }
+
+                mDb.setTransactionSuccessful();
+                return body.toString();
+            } finally {
+                mDb.endTransaction();
+            }
+        }
+    }
+
+    /**
+     * Opens a stream over the body of a note, it reads one chunk at a time 
+     * so only a chunk of the body is ever held. Each chunk is read on its 
+     * own, so a save in the middle of the read can tear it; read on the 
+     * thread that does the writes (or accept that).
+     * 
+     * @param rowId id of the note
+     * @return a Reader over the body or null if there is no such note
+     */
+    public Reader openBodyReader(long rowId) {
+        String head = readChunk(rowId, 0);
+
+        return head == null ? null : new BodyReader(rowId, head);
+    }
+
+    /**
+     * Opens a stream that replaces the body of a note (or creates a note). 
+     * The body is cut into chunks as it is written and saved when the 
+     * writer is closed, in one transaction like updateNote().
+     * 
+     * @param rowId id of the note, 0 to create a new one
+     * @return the Writer (getRowId() has the id of the note once it is closed)
+     */
+    public BodyWriter openBodyWriter(long rowId) {
+        return new BodyWriter(rowId);
+    }
+
+    /**
+     * @param rowId id of the note
+     * @param seq the chunk, 0 is the body column of the note
+     * @return the chunk or null if there is no such chunk
+     */
+    private String readChunk(long rowId, int seq) {
+        synchronized (mStatementLock) {
+            SQLiteStatement statement;
+
+            if (seq == 0) {
+                statement = mBodyByIdStmt;
+                statement.bindLong(1, rowId);
+            } else {
+                statement = mChunkByIdStmt;
+                statement.bindLong(1, rowId);
+                statement.bindLong(2, seq);
+            }
+
+            try {
+                String chunk = statement.simpleQueryForString();
+
+                /* null is a compressed chunk, a blob needs a cursor */
+                return chunk != null ? chunk : readCompressedChunk(rowId, seq);
+            } catch (SQLiteDoneException ex) {
+                /* no rows */
+                return null;
+            }
+        }
+    }
+
+    /**
+     * @return the decompressed chunk (see readChunk())
+     */
+    private String readCompressedChunk(long rowId, int seq) {
+        Cursor chunk;
+
+        if (seq == 0) {
+            chunk = mDb.rawQuery("select " + KEY_BODY + " from " + DATABASE_TABLE + " where " 
+                    + KEY_ROWID + " = ?", new String[] {Long.toString(rowId)});
+        } else {
+            chunk = mDb.rawQuery("select data from " + CHUNKS_TABLE 
+                    + " where note_id = ? and seq = ?", 
+                    new String[] {Long.toString(rowId), Integer.toString(seq)});
+        }
+
+        try {
+            return chunk.moveToFirst() ? BodyCodec.decompress(chunk.getBlob(0)) : null;
+        } finally {
+            chunk.close();
+        }
+    }
+
+    /**
+     * Binds a chunk of a body, compressed if it is long enough for that to 
+     * pay off
+     * 
+     * @return the codec the chunk is stored with (bind it with the chunk)
+     */
+    private static int bindChunk(SQLiteStatement statement, int index, String chunk) {
+        byte[] compressed = BodyCodec.compress(chunk);
+
+        if (compressed == null) {
+            statement.bindString(index, chunk);
+            return BodyCodec.CODEC_TEXT;
+        }
+
+        statement.bindBlob(index, compressed);
+        return BodyCodec.CODEC_DEFLATE;
+    }
+
+    /**
+     * @return the whole body (the full text index takes it in one piece)
+     */
+    private static String joinChunks(List<String> chunks) {
+        if (chunks.size() == 1) {
+            return chunks.get(0);
+        }
+
+        int length = 0;
+
+        for (String chunk : chunks) {
+            length += chunk.length();
+        }
+
+        StringBuilder body = new StringBuilder(length);
+
+        for (String chunk : chunks) {
+            body.append(chunk);
+        }
+        return body.toString();
+    }
+
+    /**
+     * Replaces the chunks after the first one of a note. The caller holds 
+     * mStatementLock and a transaction.
+     */
+    private void writeChunks(long rowId, List<String> chunks) {
+        mChunkDeleteStmt.bindLong(1, rowId);
+        mChunkDeleteStmt.execute();
+
+        for (int seq = 1; seq < chunks.size(); seq++) {
+            mChunkInsertStmt.bindLong(1, rowId);
+            mChunkInsertStmt.bindLong(2, seq);
+            mChunkInsertStmt.bindLong(4, bindChunk(mChunkInsertStmt, 3, chunks.get(seq)));
+            mChunkInsertStmt.executeInsert();
+        }
+    }
+
+    /**
+     * Cuts a body into chunks of at most BODY_CHUNK_LENGTH characters
+     * 
+     * @return the chunks, first one first (a short body is its only chunk)
+     */
+    static List<String> splitBody(String body) {
+        if (body.length() <= BODY_CHUNK_LENGTH) {
+            return Collections.singletonList(body);
+        }
+
+        List<String> chunks = new ArrayList<String>(body.length() / BODY_CHUNK_LENGTH + 1);
+        int start = 0;
+
+        while (start < body.length()) {
+            int end = chunkEnd(body, start, body.length());
+
+            chunks.add(body.substring(start, end));
+            start = end;
+        }
+        return chunks;
+    }
+
+    /**
+     * @return where the chunk that starts at start ends (never in the 
+     *         middle of a character)
+     */
+    private static int chunkEnd(CharSequence text, int start, int length) {
+        int end = Math.min(length, start + BODY_CHUNK_LENGTH);
+
+        if (end < length && Character.isHighSurrogate(text.charAt(end - 1))) {
+            end--;
+        }
+        return end;
+    }
+
+    /**
+     * Reads a body a chunk at a time (see openBodyReader())
+     */
+    private class BodyReader extends Reader {
+
+        private final long mRowId;
+        private String mChunk;
+        private int mSeq;
+        private int mPosition;
+
+        BodyReader(long rowId, String head) {
+            mRowId = rowId;
+            mChunk = head;
+        }
+
+        @Override
+        public int read(char[] buffer, int offset, int count) throws IOException {
+            while (mChunk != null && mPosition == mChunk.length()) {
+                mChunk = readChunk(mRowId, ++mSeq);
+                mPosition = 0;
+            }
+
+            if (mChunk == null) {
+                return -1;
+            }
+
+            int read = Math.min(count, mChunk.length() - mPosition);
+
+            mChunk.getChars(mPosition, mPosition + read, buffer, offset);
+            mPosition += read;
+            return read;
+        }
+
+        @Override
+        public void close() {
+            mChunk = null;
+        }
+    }
+
+    /**
+     * Writes a body a chunk at a time (see openBodyWriter())
+     */
+    public class BodyWriter extends Writer {
+
+        private long mRowId;
+        private final List<String> mChunks = new ArrayList<String>();
+        private final StringBuilder mChunk = new StringBuilder();
+        private boolean mClosed;
+
+        BodyWriter(long rowId) {
+            mRowId = rowId;
+        }
+
+        /**
+         * @return the id of the note (a new note only has one once the writer 
+         *         is closed)
+         */
+        public long getRowId() {
+            return mRowId;
+        }
+
+        @Override
+        public void write(char[] buffer, int offset, int count) throws IOException {
+            if (mClosed) {
+                throw new IOException("the body was already saved");
+            }
+
+            mChunk.append(buffer, offset, count);
+
+            /* Cut off the full chunks (leaving the rest for the next write) */
+            int start = 0;
+
+            while (mChunk.length() - start > BODY_CHUNK_LENGTH) {
+                int end = chunkEnd(mChunk, start, mChunk.length());
+
+                mChunks.add(mChunk.substring(start, end));
+                start = end;
+            }
+            mChunk.delete(0, start);
+        }
+
+        @Override
+        public void flush() {
+            /* nothing is saved until close() */
+        }
+
+        /**
+         * Saves the body
+         * 
+         * @throws IOException if the note could not be saved (or there is no 
+         *         such note)
+         */
+        @Override
+        public void close() throws IOException {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+
+            if (mChunk.length() > 0 || mChunks.isEmpty()) {
+                mChunks.add(mChunk.toString());
+            }
+
+            long datetime = System.currentTimeMillis();
+            boolean saved;
+
+            try {
+                if (mRowId == 0) {
+                    mRowId = insertNote(mChunks, datetime);
+                    saved = mRowId > 0;
+                } else {
+                    saved = replaceNote(mRowId, mChunks, datetime);
+                }
+            } catch (SQLException ex) {
+                IOException io = new IOException("could not save note " + mRowId);
+                io.initCause(ex);
+                throw io;
+            }
+
+            if (!saved) {
+                throw new IOException("could not save note " + mRowId);
+            }
+        }
+    }
+
+    /**
+     * Update the note using the details provided. The note to be updated is
+     * specified using the rowId, and it is altered to use the title and body
+     * values passed in
+     * 
+     * @param rowId id of note to update
+     * @param title value to set note title to
+     * @param body value to set note body to
+     * @return true if the note was successfully updated, false otherwise
+     */
+    public boolean updateNote(long rowId, String body) {
+        
+        /* Gets the save time */
+        long datetime = System.currentTimeMillis();
+
+        return replaceNote(rowId, splitBody(body), datetime);
+    }
+
+    /**
+     * Replaces the body of a note with the given chunks. A body that is the 
+     * same as the stored one is not written at all, the note keeps its time 
+     * stamp. The hash decides most saves without reading the old body, only 
+     * when it matches is the stored body compared (a collision must not 
+     * drop an edit).
+     * 
+     * A note that is not there is not an error: the transaction is still 
+     * marked successful, or a batch this runs inside would be rolled back 
+     * without a word (an inner transaction that ends without success fails 
+     * the outer one).
+     * 
+     * @return true if the note was successfully updated (or already had 
+     *         that body), false otherwise
+     */
+    private boolean replaceNote(long rowId, List<String> chunks, long datetime) {
+        long start = Metrics.start();
+        try {
+            boolean committed = false;
+
+            synchronized (mStatementLock) {
+                mDb.beginTransaction();
+                try {
+                    boolean updated = replaceNoteLocked(rowId, chunks, datetime);
+
+                    mDb.setTransactionSuccessful();
+                    committed = true;
+                    return updated;
+                } finally {
+                    mDb.endTransaction();
+                    publishChanges(committed);
+                }
+            }
+        } finally {
+            T_UPDATE.stop(start);
+        }
+    }
+
+    /**
+     * The writes of replaceNote(). The caller holds mStatementLock and a 
+     * transaction. Every outcome returns normally (nothing is left half 
+     * written), only an exception means the transaction has to be rolled 
+     * back.
+     * 
+     * @return true if the note was updated (or already had that body), 
+     *         false if there is no such note
+     */
+    private boolean replaceNoteLocked(long rowId, List<String> chunks, long datetime) {
+        String head = chunks.get(0);
+        long hash = ContentHash.of(chunks);
+
+        /* Unchanged, the old body is only read back if the hash says it is 
+         * the same */
+        mHashByIdStmt.bindLong(1, rowId);
+        try {
+            if (mHashByIdStmt.simpleQueryForLong() == hash && hasBody(rowId, chunks)) {
+                return true;
+            }
+        } catch (SQLiteDoneException ex) {
+            /* no such note, nothing was written */
+            return false;
+        }
+
+        NoteCache.remove(rowId);
+
+        /* What is there now becomes a revision */
+        if (!addRevision(rowId, chunks)) {
+            /* no such note (addRevision() wrote nothing) */
+            return false;
+        }
+
+        mUpdateStmt.bindLong(5, bindChunk(mUpdateStmt, 1, head));
+        mUpdateStmt.bindLong(2, datetime);
+        mUpdateStmt.bindString(3, buildPreview(head));
+        mUpdateStmt.bindLong(4, hash);
+        mUpdateStmt.bindLong(6, rowId);
+        mUpdateStmt.execute();
+        boolean updated = mChangesStmt.simpleQueryForLong() > 0;
+
+        if (updated) {
+            writeChunks(rowId, chunks);
+
+            mFtsUpdateStmt.bindString(1, joinChunks(chunks));
+            mFtsUpdateStmt.bindLong(2, rowId);
+            mFtsUpdateStmt.execute();
+
+            noteChanged(rowId, NOTE_UPDATED);
+        }
+        return updated;
+    }
+
+    /**
+     * @return true if the stored body of the note is the given chunks. It 
+     *         is compared a chunk at a time (equals() checks the lengths 
+     *         first), so it stops at the first chunk that differs.
+     */
+    private boolean hasBody(long rowId, List<String> chunks) {
+        for (int seq = 0; seq < chunks.size(); seq++) {
+            if (!chunks.get(seq).equals(readChunk(rowId, seq))) {
+                return false;
+            }
+        }
+        return readChunk(rowId, chunks.size()) == null;
+    }
+
+    /**
+     * Return a Cursor over the notes that have the same body as another 
+     * note. It is a single query on the hash index.
+     * 
+     * @return Cursor over _id, hash and datetime of the notes, grouped by 
+     *         hash and the most recently edited first in each group
+     */
+    public Cursor fetchDuplicates() {
+        long start = Metrics.start();
+        try {
+            return mDb.rawQuery("select " + KEY_ROWID + ", " + KEY_HASH + ", " + KEY_DATETIME 
+                    + " from " + DATABASE_TABLE + " where " + KEY_HASH + " in (select " + KEY_HASH 
+                    + " from " + DATABASE_TABLE + " where " + KEY_HASH + " is not null group by " 
+                    + KEY_HASH + " having count(*) > 1) order by " + KEY_HASH + ", " + KEY_DATETIME 
+                    + " desc, " + KEY_ROWID + " desc", null);
+        } finally {
+            T_FETCH_DUPLICATES.stop(start);
+        }
+    }
+
+    /**
+     * @param hash the content hash of the body (see ContentHash)
+     * @param body the body looked for
+     * @return true if a note has that body. The hash index finds the 
+     *         candidates (most bodies stop there) and their bodies are 
+     *         compared, the hash alone is not trusted with that.
+     */
+    public boolean hasNoteWithBody(long hash, String body) {
+        long start = Metrics.start();
+        try {
+            synchronized (mStatementLock) {
+                mHashExistsStmt.bindLong(1, hash);
+                if (mHashExistsStmt.simpleQueryForLong() == 0) {
+                    return false;
+                }
+            }
+
+            Cursor candidates = mDb.query(DATABASE_TABLE, new String[] {KEY_ROWID}, 
+                    KEY_HASH + " = ?", new String[] {Long.toString(hash)}, null, null, null);
+            try {
+                while (candidates.moveToNext()) {
+                    if (body.equals(fetchNoteBody(candidates.getLong(0)))) {
+                        return true;
+                    }
+                }
+                return false;
+            } finally {
+                candidates.close();
+            }
+        } finally {
+            T_HAS_BODY.stop(start);
+        }
+    }
+
+    /**
+     * Measures the space the bodies take up: the stored bodies (the body 
+     * column and the chunks, the compressed ones as stored) next to the 
+     * full text index's copy of them (see FTS_CREATE). The sizes are in 
+     * bytes, the index's own terms are not counted.
+     * 
+     * @return {the stored bodies, the full text copy}
+     */
+    long[] measureBodyStorage() {
+        Cursor sizes = mDb.rawQuery("select (select total(length(cast(" + KEY_BODY 
+                + " as blob))) from " + DATABASE_TABLE + ") + (select total(length(cast(data " 
+                + "as blob))) from note_chunks), (select total(length(cast(c0body as blob))) " 
+                + "from notes_fts_content)", null);
+        try {
+            sizes.moveToFirst();
+            return new long[] {sizes.getLong(0), sizes.getLong(1)};
+        } finally {
+            sizes.close();
+        }
+    }
+
+    /**
+     * Merges every group of duplicate notes into its most recently edited 
+     * note, the others are deleted. The bodies are compared before a note 
+     * is deleted, the hash alone is not trusted with that.
+     * 
+     * @return the number of notes deleted
+     */
+    public int mergeDuplicates() {
+        long start = Metrics.start();
+        try {
+            long[] rowIds;
+            long[] hashes;
+
+            /* Read them all first, the deletes would move the cursor's rows */
+            Cursor duplicates = fetchDuplicates();
+            try {
+                rowIds = new long[duplicates.getCount()];
+                hashes = new long[rowIds.length];
+
+                for (int i = 0; duplicates.moveToNext(); i++) {
+                    rowIds[i] = duplicates.getLong(0);
+                    hashes[i] = duplicates.getLong(1);
+                }
+            } finally {
+                duplicates.close();
+            }
+
+            int merged = 0;
+            boolean committed = false;
+
+            synchronized (mStatementLock) {
+                mDb.beginTransaction();
+                try {
+                    String keptBody = null;
+                    int kept = -1;
+
+                    for (int i = 0; i < rowIds.length; i++) {
+                        if (kept < 0 || hashes[i] != hashes[kept]) {
+                            /* the first of a group is the one kept */
+                            kept = i;
+                            keptBody = null;
+                            continue;
+                        }
+
+                        if (keptBody == null) {
+                            keptBody = fetchNoteBody(rowIds[kept]);
+                        }
+
+                        if (keptBody != null && keptBody.equals(fetchNoteBody(rowIds[i]))
+                                && deleteNote(rowIds[i])) {
+                            merged++;
+                        }
+                    }
+
+                    mDb.setTransactionSuccessful();
+                    committed = true;
+                } finally {
+                    mDb.endTransaction();
+                    publishChanges(committed);
+                }
+            }
+            return merged;
+        } finally {
+            T_MERGE.stop(start);
+        }
+    }
+
+    /**
+     * Return a Cursor over the revisions of a note, newest first
+     * 
+     * @param rowId id of the note
+     * @return Cursor over the revision number and the datetime the revision 
+     *         was saved at
+     */
+    public Cursor fetchRevisions(long rowId) {
+        long start = Metrics.start();
+        try {
+            return mDb.query(REVISIONS_TABLE, new String[] {KEY_REVISION, KEY_DATETIME}, 
+                    "note_id = ?", new String[] {Long.toString(rowId)}, null, null, 
+                    KEY_REVISION + " desc");
+        } finally {
+            T_FETCH_REVISIONS.stop(start);
+        }
+    }
+
+    /**
+     * Rebuilds the body of a note as it was at a revision. This starts from 
+     * the nearest newer snapshot (or the note itself) and applies the deltas 
+     * back to the revision, which is never more than SNAPSHOT_INTERVAL of 
+     * them.
+     * 
+     * @param rowId id of the note
+     * @param revision the revision to rebuild
+     * @return the body at that revision or null if there is no such revision
+     */
+    public String fetchRevisionBody(long rowId, long revision) {
+        long start = Metrics.start();
+        try {
+            String note = Long.toString(rowId);
+            String rev = Long.toString(revision);
+            String upTo = "";
+            String body = null;
+
+            Cursor snapshot = mDb.rawQuery("select min(" + KEY_REVISION + ") from " 
+                    + REVISIONS_TABLE + " where note_id = ? and snapshot = 1 and " 
+                    + KEY_REVISION + " >= ?", new String[] {note, rev});
+            try {
+                if (snapshot.moveToFirst() && !snapshot.isNull(0)) {
+                    upTo = " and " + KEY_REVISION + " <= " + snapshot.getLong(0);
+                } else {
+                    /* There is no newer snapshot, start from the note */
+                    body = fetchNoteBody(rowId);
+
+                    if (body == null) {
+                        return null;
+                    }
+                }
+            } finally {
+                snapshot.close();
+            }
+
+            Cursor revisions = mDb.rawQuery("select " + KEY_REVISION + ", snapshot, data from " 
+                    + REVISIONS_TABLE + " where note_id = ? and " + KEY_REVISION + " >= ?" + upTo 
+                    + " order by " + KEY_REVISION + " desc", new String[] {note, rev});
+            try {
+                long last = -1;
+
+                while (revisions.moveToNext()) {
+                    last = revisions.getLong(0);
+
+                    if (revisions.getInt(1) != 0) {
+                        body = revisions.getString(2);
+                    } else {
+                        body = applyDelta(revisions.getString(2), body);
+                    }
+                }
+                return last == revision ? body : null;
+            } finally {
+                revisions.close();
+            }
+        } finally {
+            T_FETCH_REVISION.stop(start);
+        }
+    }
+
+    /**
+     * Puts a note back the way it was at a revision. This is an update like 
+     * any other, so what was there before the restore becomes a revision too.
+     * 
+     * @param rowId id of the note
+     * @param revision the revision to restore
+     * @return true if the note was restored, false if there is no such 
+     *         revision
+     */
+    public boolean restoreRevision(long rowId, long revision) {
+        long start = Metrics.start();
+        try {
+            synchronized (mStatementLock) {
+                String body = fetchRevisionBody(rowId, revision);
+
+                return body != null && updateNote(rowId, body);
+            }
+        } finally {
+            T_RESTORE.stop(start);
+        }
+    }
+
+    /**
+     * Stores what the note is now as its newest revision (called just before 
+     * the note is updated) and drops the revisions past MAX_REVISIONS. The 
+     * caller holds mStatementLock and a transaction.
+     * 
+     * Only bodies that fit in one chunk are kept. A long body would make a 
+     * revision too big to read back, so:
+     * <ul>
+     * <li>when a note gets long, what it was is stored whole (nothing older 
+     * depends on the long body)</li>
+     * <li>while a note is long, its updates store nothing</li>
+     * </ul>
+     * 
+     * @param rowId id of the note
+     * @param newChunks the body the note is about to get
+     * @return false if there is no such note
+     */
+    private boolean addRevision(long rowId, List<String> newChunks) {
+        String oldBody;
+        long oldDatetime;
+        boolean oldChunked;
+
+        Cursor note = mDb.rawQuery("select case when " + KEY_CODEC + " = " + BodyCodec.CODEC_TEXT 
+                + " then " + KEY_BODY + " end, " + KEY_DATETIME + ", exists (select 1 from " 
+                + CHUNKS_TABLE + " where note_id = ?1) from " + DATABASE_TABLE + " where " 
+                + KEY_ROWID + " = ?1", new String[] {Long.toString(rowId)});
+        try {
+            if (!note.moveToFirst()) {
+                return false;
+            }
+            oldBody = note.getString(0);
+            oldDatetime = note.getLong(1);
+            oldChunked = note.getInt(2) != 0;
+        } finally {
+            note.close();
+        }
+
+        if (oldBody == null && !oldChunked) {
+            /* compressed */
+            oldBody = readChunk(rowId, 0);
+        }
+
+        String newBody = newChunks.get(0);
+        boolean newChunked = newChunks.size() > 1;
+
+        if (oldChunked || (!newChunked && oldBody.equals(newBody))) {
+            /* Nothing to remember */
+            return true;
+        }
+
+        mRevisionLatestStmt.bindLong(1, rowId);
+        long revision = mRevisionLatestStmt.simpleQueryForLong() + 1;
+        boolean snapshot = newChunked || revision % SNAPSHOT_INTERVAL == 0;
+
+        mRevisionInsertStmt.bindLong(1, rowId);
+        mRevisionInsertStmt.bindLong(2, revision);
+        mRevisionInsertStmt.bindLong(3, snapshot ? 1 : 0);
+        mRevisionInsertStmt.bindString(4, snapshot ? oldBody : buildDelta(oldBody, newBody));
+        mRevisionInsertStmt.bindLong(5, oldDatetime);
+        mRevisionInsertStmt.executeInsert();
+
+        /* The deltas are rebuilt from newer revisions, so the oldest ones can 
+         * go without touching the others */
+        if (revision > MAX_REVISIONS) {
+            mRevisionTrimStmt.bindLong(1, rowId);
+            mRevisionTrimStmt.bindLong(2, revision - MAX_REVISIONS);
+            mRevisionTrimStmt.execute();
+        }
+        return true;
+    }
+
+    /**
+     * Builds the delta that turns newer back into older: the length of the 
+     * start and of the end they share, then the part of older in between 
+     * ("start:end:middle"). An edit in one place costs about the size of 
+     * the edit.
+     */
+    static String buildDelta(String older, String newer) {
+        int max = Math.min(older.length(), newer.length());
+        int prefix = 0;
+
+        while (prefix < max && older.charAt(prefix) == newer.charAt(prefix)) {
+            prefix++;
+        }
+
+        int suffix = 0;
+
+        while (suffix < max - prefix && older.charAt(older.length() - 1 - suffix) 
+                == newer.charAt(newer.length() - 1 - suffix)) {
+            suffix++;
+        }
+
+        return prefix + ":" + suffix + ":" 
+                + older.substring(prefix, older.length() - suffix);
+    }
+
+    /**
+     * Applies a delta from buildDelta() to the newer body
+     * 
+     * @return the older body
+     */
+    static String applyDelta(String delta, String newer) {
+        int first = delta.indexOf(':');
+        int second = delta.indexOf(':', first + 1);
+        int prefix = Integer.parseInt(delta.substring(0, first));
+        int suffix = Integer.parseInt(delta.substring(first + 1, second));
+
+        StringBuilder older = new StringBuilder(
+                prefix + suffix + delta.length() - second - 1);
+        older.append(newer, 0, prefix);
+        older.append(delta, second + 1, delta.length());
+        older.append(newer, newer.length() - suffix, newer.length());
+        return older.toString();
+    }
+
+    /**
+     * Applies a list of operations in a single transaction, so the journal 
+     * is only synced once for the whole list. If any operation fails, none 
+     * of them are applied. The operations are written straight into this 
+     * transaction (no transaction is nested in it), so an operation can 
+     * only fail by throwing, and that rolls the batch back.
+     * 
+     * @param operations the creates, updates and deletes to apply in order
+     * @return one result per operation: the new rowId for a create, 1 or 0 
+     *         (the note was not there) for an update or a delete
+     * @throws SQLException if an operation failed, the DB is rolled back
+     */
+    public long[] applyBatch(List<BatchOperation> operations) throws SQLException {
+        long start = Metrics.start();
+        try {
+            long[] results = new long[operations.size()];
+            long now = System.currentTimeMillis();
+            boolean committed = false;
+
+            /* The statement lock is always taken before the DB lock (the 
+             * single note calls take it first too) */
+            synchronized (mStatementLock) {
+                mDb.beginTransaction();
+                try {
+                    for (int i = 0; i < results.length; i++) {
+                        BatchOperation op = operations.get(i);
+
+                        switch (op.getType()) {
+                            case BatchOperation.CREATE:
+                                results[i] = insertNoteLocked(splitBody(op.getBody()), 
+                                        op.getDatetime());
+                                break;
+                            case BatchOperation.UPDATE:
+                                results[i] = replaceNoteLocked(op.getRowId(), 
+                                        splitBody(op.getBody()), now) ? 1 : 0;
+                                break;
+                            case BatchOperation.DELETE:
+                                results[i] = deleteNoteLocked(op.getRowId()) ? 1 : 0;
+                                break;
+                            default:
+                                throw new SQLException("unknown batch operation " + op.getType());
+                        }
+                    }
+                    mDb.setTransactionSuccessful();
+                    committed = true;
+                } finally {
+                    mDb.endTransaction();
+                    publishChanges(committed);
+                }
+            }
+            return results;
+        } finally {
+            T_BATCH.stop(start);
+        }
+    }
+
+    /**
+     * Runs some work in one transaction: the notes it writes are committed 
+     * (and told about, see ChangeListener) together, or not at all. For the 
+     * writes that can't be put as BatchOperations (see NotesProvider).
+     * 
+     * @param work calls the write methods of this adapter
+     * @return what work returned
+     * @throws Exception what work threw, nothing it wrote is kept
+     */
+    public <T> T runInTransaction(Callable<T> work) throws Exception {
+        long start = Metrics.start();
+        try {
+            boolean committed = false;
+
+            synchronized (mStatementLock) {
+                mDb.beginTransaction();
+                try {
+                    T result = work.call();
+
+                    mDb.setTransactionSuccessful();
+                    committed = true;
+                    return result;
+                } finally {
+                    mDb.endTransaction();
+                    publishChanges(committed);
+                }
+            }
+        } finally {
+            T_TRANSACTION.stop(start);
+        }
+    }
+
+    /**
+     * @param listener hears about the notes written from now on (on the 
+     *        thread that writes them)
+     */
+    public void addChangeListener(ChangeListener listener) {
+        mChangeListeners.add(listener);
+    }
+
+    public void removeChangeListener(ChangeListener listener) {
+        mChangeListeners.remove(listener);
+    }
+
+    /**
+     * Notes what a write did to a note, it is told once the outermost 
+     * transaction commits (see publishChanges()). The caller holds 
+     * mStatementLock.
+     */
+    private void noteChanged(long rowId, int change) {
+        Integer earlier = mPendingChanges.get(rowId);
+
+        if (earlier == null) {
+            mPendingChanges.put(rowId, change);
+        } else if (earlier == NOTE_INSERTED && change == NOTE_DELETED) {
+            /* never seen outside the transaction */
+            mPendingChanges.remove(rowId);
+        } else if (earlier != NOTE_INSERTED) {
+            /* a note created and then updated is still new */
+            mPendingChanges.put(rowId, change);
+        }
+    }
+
+    /**
+     * Tells the listeners about the changes once the last transaction is 
+     * closed, or drops them if it was rolled back. The caller holds 
+     * mStatementLock and has just ended its transaction.
+     * 
+     * @param committed false if the transaction just ended was rolled back
+     */
+    private void publishChanges(boolean committed) {
+        if (!committed) {
+            mPendingChanges.clear();
+            return;
+        }
+
+        if (mDb.inTransaction() || mPendingChanges.isEmpty()) {
+            /* the outer transaction publishes them */
+            return;
+        }
+
+        int[] counts = new int[NOTE_DELETED + 1];
+
+        for (int change : mPendingChanges.values()) {
+            counts[change]++;
+        }
+
+        long[][] ids = {null, new long[counts[NOTE_INSERTED]], 
+                new long[counts[NOTE_UPDATED]], new long[counts[NOTE_DELETED]]};
+
+        counts = new int[NOTE_DELETED + 1];
+        for (Map.Entry<Long, Integer> entry : mPendingChanges.entrySet()) {
+            int change = entry.getValue();
+
+            ids[change][counts[change]++] = entry.getKey();
+        }
+        mPendingChanges.clear();
+
+        for (ChangeListener listener : mChangeListeners) {
+            try {
+                listener.onNotesChanged(ids[NOTE_INSERTED], ids[NOTE_UPDATED], 
+                        ids[NOTE_DELETED]);
+            } catch (RuntimeException ex) {
+                /* the write is done, a listener can't undo it */
+                Log.e(TAG, "change listener failed", ex);
+            }
+        }
+    }
+
+    /**
+     * Builds the preview stored with a note, so the list never has to read 
+     * the body.
+     * 
+     * @param body the body of the note
+     * @return at most PREVIEW_LENGTH characters from the start of the body
+     */
+    static String buildPreview(String body) {
+        if (body.length() <= PREVIEW_LENGTH) {
+            return body;
+        }
+
+        int end = PREVIEW_LENGTH;
+
+        /* Don't cut a character in half */
+        if (Character.isHighSurrogate(body.charAt(end - 1))) {
+            end--;
+        }
+        return body.substring(0, end);
+    }
+
+    /**
+     * Counts the notes that match a where clause
+     */
+    private static long countRows(SQLiteDatabase db, String where) {
+        SQLiteStatement count = db.compileStatement("select count(*) from " 
+                + DATABASE_TABLE + " where " + where);
+        try {
+            return count.simpleQueryForLong();
+        } finally {
+            count.close();
+        }
+    }
+
+    /**
+     * Records that the migration has to go over the notes that are there now 
+     * (up to the highest _id given out, which covers the notes the version 5 
+     * move has yet to bring over)
+     */
+    private static void startBackfill(SQLiteDatabase db, int version) {
+        db.execSQL(MIGRATION_STATE_CREATE);
+        db.execSQL("insert or replace into migration_state (version, position, last) "
+                + "select " + version + ", 0, max(coalesce(max(" + KEY_ROWID + "), 0), "
+                + "coalesce((select seq from sqlite_sequence where name = '" + DATABASE_TABLE 
+                + "'), 0)) from " + DATABASE_TABLE);
+    }
+
+    /**
+     * @return the last _id done and the last _id to do, or null if the 
+     *         migration has nothing to do
+     */
+    private static long[] getBackfill(SQLiteDatabase db, int version) {
+        if (!tableExists(db, "migration_state")) {
+            return null;
+        }
+
+        Cursor state = db.rawQuery("select position, last from migration_state where version = ?", 
+                new String[] {Integer.toString(version)});
+        try {
+            if (!state.moveToFirst()) {
+                return null;
+            }
+            return new long[] {state.getLong(0), state.getLong(1)};
+        } finally {
+            state.close();
+        }
+    }
+
+    /**
+     * Records the last _id the migration is done with
+     */
+    private static void setBackfillPosition(SQLiteDatabase db, int version, long position) {
+        db.execSQL("update migration_state set position = ? where version = ?", 
+                new Object[] {position, version});
+    }
+
+    /**
+     * Forgets the migration (it is done)
+     */
+    private static void endBackfill(SQLiteDatabase db, int version) {
+        if (tableExists(db, "migration_state")) {
+            db.execSQL("delete from migration_state where version = ?", new Object[] {version});
+        }
+    }
+
+    /**
+     * @return true if the table is in the DB
+     */
+    private static boolean tableExists(SQLiteDatabase db, String table) {
+        SQLiteStatement exists = db.compileStatement("select count(*) from sqlite_master"
+                + " where type = 'table' and name = ?");
+        try {
+            exists.bindString(1, table);
+            return exists.simpleQueryForLong() > 0;
+        } finally {
+            exists.close();
+        }
+    }
+
+    /**
+     * @return the number of rows the last update/delete on db touched
+     */
+    private static long changes(SQLiteDatabase db) {
+        SQLiteStatement changes = db.compileStatement(CHANGES_SQL);
+        try {
+            return changes.simpleQueryForLong();
+        } finally {
+            changes.close();
+        }
+    }
 }
@@ -0,0 +1,399 @@
+package com.android.demo.jnotepad;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.content.UriMatcher;
+import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.database.MatrixCursor;
+import android.database.SQLException;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * Lets other components (and other apps, with the permission) get at the
+ * notes through a ContentResolver. It works on the same NotesDbAdapter as
+ * the rest of the app, so it sees every write, and every write (through
+ * here or not) is sent to the observers of CONTENT_URI.
+ *
+ * <ul>
+ * <li>notes: the list rows (_id, preview, datetime), most recently edited
+ * first; insert here (body, optionally datetime)</li>
+ * <li>notes/page?limit=50&amp;after_datetime=..&amp;after_id=..: one page of
+ * the list, the page after the note given (the first page without it)</li>
+ * <li>notes/search?q=words&amp;limit=100: the best matches, the preview is
+ * the snippet (see NotesDbAdapter.searchNotes())</li>
+ * <li>notes/#: one note (_id, body, datetime); update (body) and delete
+ * here</li>
+ * </ul>
+ * The selection, arguments and sort order of a query are not used.
+ *
+ * The writes go through the writer thread of NoteRepository (in order with
+ * the saves of the app) and each call waits for its own. The provider holds
+ * the database open through a NoteRepository only while a call runs or a
+ * cursor it handed out is open, so once other apps are done with it the
+ * database is closed like it is after the app's own activities.
+ *
+ * @author jrymal
+ *
+ */
+public class NotesProvider extends ContentProvider {
+
+	public static final String AUTHORITY = "com.android.demo.jnotepad.notes";
+
+	public static final Uri CONTENT_URI = Uri.parse("content://" + AUTHORITY + "/notes");
+
+	public static final String CONTENT_TYPE = "vnd.android.cursor.dir/vnd.jnotepad.note";
+	public static final String CONTENT_ITEM_TYPE = "vnd.android.cursor.item/vnd.jnotepad.note";
+
+	/** The query parameters */
+	public static final String PARAM_LIMIT = "limit";
+	public static final String PARAM_AFTER_DATETIME = "after_datetime";
+	public static final String PARAM_AFTER_ID = "after_id";
+	public static final String PARAM_QUERY = "q";
+
+	/** The size of a page or a search when the limit is not given */
+	private static final int DEFAULT_LIMIT = 100;
+
+	private static final int NOTES = 1;
+	private static final int NOTES_PAGE = 2;
+	private static final int NOTES_SEARCH = 3;
+	private static final int NOTE_ID = 4;
+
+	private static final UriMatcher sUriMatcher = new UriMatcher(UriMatcher.NO_MATCH);
+
+	static {
+		sUriMatcher.addURI(AUTHORITY, "notes", NOTES);
+		sUriMatcher.addURI(AUTHORITY, "notes/page", NOTES_PAGE);
+		sUriMatcher.addURI(AUTHORITY, "notes/search", NOTES_SEARCH);
+		sUriMatcher.addURI(AUTHORITY, "notes/#", NOTE_ID);
+	}
+
+	private static final String[] NOTE_COLUMNS = new String[] {
+		NotesDbAdapter.KEY_ROWID, NotesDbAdapter.KEY_BODY, NotesDbAdapter.KEY_DATETIME};
+
+	/** The database of the application (open while a repository is) */
+	private NotesDbAdapter mDb;
+
+	/** Repositories are closed on the main thread */
+	private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+	/**
+	 * Tells the observers about every write to the notes
+	 */
+	private final NotesDbAdapter.ChangeListener mChangeNotifier =
+		new NotesDbAdapter.ChangeListener() {
+		public void onNotesChanged(long[] inserted, long[] updated, long[] deleted) {
+			getContext().getContentResolver().notifyChange(CONTENT_URI, null);
+		}
+	};
+
+	@Override
+	public boolean onCreate() {
+		/* The database is only opened by a call, this runs on the main 
+		 * thread. The listener stays on the adapter across its opens. */
+		mDb = NotepadApplication.from(getContext()).getNotesDb();
+		mDb.addChangeListener(mChangeNotifier);
+		return true;
+	}
+
+	/**
+	 * Keeps the database open for one call, hand it to release() after
+	 */
+	private NoteRepository acquire() {
+		return new NoteRepository(getContext());
+	}
+
+	/**
+	 * Lets go of the database (it is closed a while after nobody uses it)
+	 */
+	private void release(final NoteRepository notes) {
+		mMainHandler.post(new Runnable() {
+			public void run() {
+				notes.close();
+			}
+		});
+	}
+
+	/**
+	 * Runs a write on the writer thread and waits for it
+	 */
+	private <T> T write(Callable<T> task) {
+		NoteRepository notes = acquire();
+
+		try {
+			return notes.runWrite(task);
+		} catch (RuntimeException ex) {
+			throw ex;
+		} catch (Exception ex) {
+			/* the writes here throw nothing else */
+			throw new IllegalStateException(ex);
+		} finally {
+			release(notes);
+		}
+	}
+
+	@Override
+	public String getType(Uri uri) {
+		switch (sUriMatcher.match(uri)) {
+			case NOTES:
+			case NOTES_PAGE:
+			case NOTES_SEARCH:
+				return CONTENT_TYPE;
+			case NOTE_ID:
+				return CONTENT_ITEM_TYPE;
+			default:
+				throw new IllegalArgumentException("Unknown URI " + uri);
+		}
+	}
+
+	@Override
+	public Cursor query(Uri uri, String[] projection, String selection,
+			String[] selectionArgs, String sortOrder) {
+		final NoteRepository notes = acquire();
+		boolean handedOut = false;
+
+		try {
+			Cursor cursor = query(notes.awaitDatabase(), uri);
+
+			/* The database stays open until the cursor is closed */
+			cursor = new CursorWrapper(cursor) {
+				private boolean mReleased;
+
+				@Override
+				public void close() {
+					super.close();
+
+					if (!mReleased) {
+						mReleased = true;
+						release(notes);
+					}
+				}
+			};
+			handedOut = true;
+			return cursor;
+		} finally {
+			if (!handedOut) {
+				release(notes);
+			}
+		}
+	}
+
+	/**
+	 * @return the cursor over what the uri asks for
+	 */
+	private Cursor query(NotesDbAdapter db, Uri uri) {
+		Cursor cursor;
+		Uri notificationUri = CONTENT_URI;
+
+		switch (sUriMatcher.match(uri)) {
+			case NOTES:
+				cursor = db.fetchNotesPage(0, 0, Integer.MAX_VALUE);
+				break;
+			case NOTES_PAGE:
+				cursor = db.fetchNotesPage(getLong(uri, PARAM_AFTER_DATETIME, 0),
+						getLong(uri, PARAM_AFTER_ID, 0),
+						(int) getLong(uri, PARAM_LIMIT, DEFAULT_LIMIT));
+				break;
+			case NOTES_SEARCH:
+				String words = uri.getQueryParameter(PARAM_QUERY);
+
+				cursor = words == null ? null : db.searchNotes(words,
+						(int) getLong(uri, PARAM_LIMIT, DEFAULT_LIMIT), null);
+				if (cursor == null) {
+					/* no words, no matches */
+					cursor = new MatrixCursor(new String[] {NotesDbAdapter.KEY_ROWID,
+							NotesDbAdapter.KEY_PREVIEW, NotesDbAdapter.KEY_DATETIME}, 0);
+				}
+				break;
+			case NOTE_ID:
+				cursor = queryNote(db, ContentUris.parseId(uri));
+				notificationUri = uri;
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown URI " + uri);
+		}
+
+		/* A loader (or a requery) is told when the notes change */
+		cursor.setNotificationUri(getContext().getContentResolver(), notificationUri);
+		return cursor;
+	}
+
+	/**
+	 * @return a cursor over the whole note (the body is put together from
+	 *         its chunks and decompressed), empty if there is no such note
+	 */
+	private static Cursor queryNote(NotesDbAdapter db, long rowId) {
+		MatrixCursor cursor = new MatrixCursor(NOTE_COLUMNS, 1);
+		Cursor note = db.fetchNote(rowId);
+		long datetime;
+
+		try {
+			if (note == null || note.getCount() == 0) {
+				return cursor;
+			}
+			datetime = note.getLong(note.getColumnIndexOrThrow(NotesDbAdapter.KEY_DATETIME));
+		} finally {
+			if (note != null) {
+				note.close();
+			}
+		}
+
+		String body = db.fetchNoteBody(rowId);
+
+		if (body != null) {
+			cursor.addRow(new Object[] {rowId, body, datetime});
+		}
+		return cursor;
+	}
+
+	@Override
+	public Uri insert(Uri uri, ContentValues values) {
+		if (sUriMatcher.match(uri) != NOTES) {
+			throw new IllegalArgumentException("Unknown URI " + uri);
+		}
+
+		final String body = getBody(values);
+		final Long datetime = values.getAsLong(NotesDbAdapter.KEY_DATETIME);
+		long rowId = write(new Callable<Long>() {
+			public Long call() {
+				return datetime == null ? mDb.createNote(body) : mDb.createNote(body, datetime);
+			}
+		});
+
+		if (rowId < 0) {
+			throw new SQLException("Failed to insert a note into " + uri);
+		}
+		return ContentUris.withAppendedId(CONTENT_URI, rowId);
+	}
+
+	/**
+	 * Inserts all the notes in one transaction
+	 */
+	@Override
+	public int bulkInsert(Uri uri, ContentValues[] values) {
+		if (sUriMatcher.match(uri) != NOTES) {
+			throw new IllegalArgumentException("Unknown URI " + uri);
+		}
+
+		final List<NotesDbAdapter.BatchOperation> operations =
+			new ArrayList<NotesDbAdapter.BatchOperation>(values.length);
+
+		for (ContentValues note : values) {
+			Long datetime = note.getAsLong(NotesDbAdapter.KEY_DATETIME);
+
+			operations.add(datetime == null
+					? NotesDbAdapter.BatchOperation.create(getBody(note))
+					: NotesDbAdapter.BatchOperation.create(getBody(note), datetime));
+		}
+
+		write(new Callable<long[]>() {
+			public long[] call() {
+				return mDb.applyBatch(operations);
+			}
+		});
+		return values.length;
+	}
+
+	/**
+	 * Applies all the operations in one transaction (one change is sent to
+	 * the observers for all of them). The whole batch runs on the writer
+	 * thread, the inserts, updates and deletes it makes run in place there.
+	 */
+	@Override
+	public ContentProviderResult[] applyBatch(
+			final ArrayList<ContentProviderOperation> operations)
+			throws OperationApplicationException {
+		NoteRepository notes = acquire();
+
+		try {
+			return notes.runWrite(new Callable<ContentProviderResult[]>() {
+				public ContentProviderResult[] call() throws Exception {
+					return mDb.runInTransaction(new Callable<ContentProviderResult[]>() {
+						public ContentProviderResult[] call()
+								throws OperationApplicationException {
+							return NotesProvider.super.applyBatch(operations);
+						}
+					});
+				}
+			});
+		} catch (OperationApplicationException ex) {
+			throw ex;
+		} catch (RuntimeException ex) {
+			throw ex;
+		} catch (Exception ex) {
+			/* call() throws nothing else */
+			throw new IllegalStateException(ex);
+		} finally {
+			release(notes);
+		}
+	}
+
+	@Override
+	public int update(Uri uri, ContentValues values, String selection,
+			String[] selectionArgs) {
+		if (sUriMatcher.match(uri) != NOTE_ID) {
+			throw new IllegalArgumentException("Unknown URI " + uri);
+		}
+		final long rowId = ContentUris.parseId(uri);
+		final String body = getBody(values);
+
+		return write(new Callable<Boolean>() {
+			public Boolean call() {
+				return mDb.updateNote(rowId, body);
+			}
+		}) ? 1 : 0;
+	}
+
+	@Override
+	public int delete(Uri uri, String selection, String[] selectionArgs) {
+		if (sUriMatcher.match(uri) != NOTE_ID) {
+			throw new IllegalArgumentException("Unknown URI " + uri);
+		}
+		final long rowId = ContentUris.parseId(uri);
+
+		return write(new Callable<Boolean>() {
+			public Boolean call() {
+				return mDb.deleteNote(rowId);
+			}
+		}) ? 1 : 0;
+	}
+
+	/**
+	 * @return the body in the values (the notes keep their bodies trimmed)
+	 */
+	private static String getBody(ContentValues values) {
+		String body = values == null ? null : values.getAsString(NotesDbAdapter.KEY_BODY);
+
+		if (body == null || body.trim().length() == 0) {
+			throw new IllegalArgumentException("A note needs a body");
+		}
+		return body.trim();
+	}
+
+	/**
+	 * @return a number query parameter, otherwise if it is not there
+	 */
+	private static long getLong(Uri uri, String name, long otherwise) {
+		String value = uri.getQueryParameter(name);
+
+		if (value == null) {
+			return otherwise;
+		}
+
+		try {
+			return Long.parseLong(value);
+		} catch (NumberFormatException ex) {
+			throw new IllegalArgumentException("Bad " + name + " in " + uri);
+		}
+	}
+}
@@ -0,0 +1,296 @@
+package com.android.demo.jnotepad.diagnostics;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts and times what the app does, for the whole process. It is cheap
+ * enough to leave on: recording is a few atomic adds, no lock is taken and
+ * nothing is allocated, so it can sit on the hot paths (every DB call,
+ * every list load).
+ *
+ * <pre>
+ * private static final Metrics.Timer LOAD = Metrics.timer("list.load");
+ *
+ * long start = Metrics.start();
+ * try {
+ *     ...
+ * } finally {
+ *     LOAD.stop(start);
+ * }
+ * </pre>
+ *
+ * A timer keeps a histogram of the times in powers of two microseconds,
+ * which is enough to tell a 1ms call from a 100ms one and read rough
+ * percentiles off. dump() writes it all out as text (see MetricsActivity).
+ *
+ * @author jrymal
+ *
+ */
+public final class Metrics {
+
+	/** The histogram buckets: [2^i, 2^(i+1)) microseconds, the last one open */
+	private static final int BUCKETS = 32;
+
+	private static final ConcurrentMap<String, Timer> sTimers =
+		new ConcurrentHashMap<String, Timer>();
+
+	private static final ConcurrentMap<String, Counter> sCounters =
+		new ConcurrentHashMap<String, Counter>();
+
+	/**
+	 * Times one kind of call
+	 */
+	public static final class Timer {
+
+		private final String mName;
+
+		private final AtomicLong mCount = new AtomicLong();
+		private final AtomicLong mTotalNanos = new AtomicLong();
+		private final AtomicLong mMaxNanos = new AtomicLong();
+		private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKETS);
+
+		private Timer(String name) {
+			mName = name;
+		}
+
+		/**
+		 * Records a call
+		 *
+		 * @param start what Metrics.start() returned when the call started
+		 */
+		public void stop(long start) {
+			record(System.nanoTime() - start);
+		}
+
+		/**
+		 * Records a call that took a given time (measured some other way)
+		 */
+		public void record(long nanos) {
+			if (nanos < 0) {
+				return;
+			}
+
+			mCount.incrementAndGet();
+			mTotalNanos.addAndGet(nanos);
+			mBuckets.incrementAndGet(bucketOf(nanos / 1000));
+
+			long max = mMaxNanos.get();
+
+			while (nanos > max && !mMaxNanos.compareAndSet(max, nanos)) {
+				max = mMaxNanos.get();
+			}
+		}
+
+		/**
+		 * Records a call that took a given time in milliseconds
+		 */
+		public void recordMillis(long millis) {
+			record(millis * 1000 * 1000);
+		}
+
+		public String getName() {
+			return mName;
+		}
+
+		public long getCount() {
+			return mCount.get();
+		}
+
+		/**
+		 * @return the time below which the given share of the calls took,
+		 *         in microseconds (the top of the bucket, so it is rounded up
+		 *         to a power of two)
+		 */
+		public long getPercentileMicros(double share) {
+			long[] buckets = new long[BUCKETS];
+			long count = 0;
+
+			for (int i = 0; i < BUCKETS; i++) {
+				buckets[i] = mBuckets.get(i);
+				count += buckets[i];
+			}
+
+			long wanted = (long) Math.ceil(count * share);
+			long seen = 0;
+
+			for (int i = 0; i < BUCKETS; i++) {
+				seen += buckets[i];
+				if (seen >= wanted && seen > 0) {
+					return 1L << (i + 1);
+				}
+			}
+			return 0;
+		}
+
+		private void reset() {
+			mCount.set(0);
+			mTotalNanos.set(0);
+			mMaxNanos.set(0);
+			for (int i = 0; i < BUCKETS; i++) {
+				mBuckets.set(i, 0);
+			}
+		}
+
+		/**
+		 * One line: count, total, mean, max and the 50/90/99th percentiles
+		 */
+		private void dump(StringBuilder out) {
+			long count = mCount.get();
+			long total = mTotalNanos.get();
+
+			out.append(String.format(Locale.US,
+					"%-28s %7d %10.1f %8.2f %8.2f %7s %7s %7s%n", mName, count,
+					total / 1e6, count == 0 ? 0 : total / 1e6 / count, mMaxNanos.get() / 1e6,
+					formatMicros(getPercentileMicros(0.5)),
+					formatMicros(getPercentileMicros(0.9)),
+					formatMicros(getPercentileMicros(0.99))));
+		}
+	}
+
+	/**
+	 * Counts something
+	 */
+	public static final class Counter {
+
+		private final String mName;
+		private final AtomicLong mValue = new AtomicLong();
+
+		private Counter(String name) {
+			mName = name;
+		}
+
+		public void increment() {
+			mValue.incrementAndGet();
+		}
+
+		public void add(long delta) {
+			mValue.addAndGet(delta);
+		}
+
+		public String getName() {
+			return mName;
+		}
+
+		public long get() {
+			return mValue.get();
+		}
+	}
+
+	private Metrics() {
+	}
+
+	/**
+	 * @return the timer with the name (made the first time), keep it in a
+	 *         static field
+	 */
+	public static Timer timer(String name) {
+		Timer timer = sTimers.get(name);
+
+		if (timer == null) {
+			Timer created = new Timer(name);
+
+			timer = sTimers.putIfAbsent(name, created);
+			if (timer == null) {
+				timer = created;
+			}
+		}
+		return timer;
+	}
+
+	/**
+	 * @return the counter with the name (made the first time), keep it in a
+	 *         static field
+	 */
+	public static Counter counter(String name) {
+		Counter counter = sCounters.get(name);
+
+		if (counter == null) {
+			Counter created = new Counter(name);
+
+			counter = sCounters.putIfAbsent(name, created);
+			if (counter == null) {
+				counter = created;
+			}
+		}
+		return counter;
+	}
+
+	/**
+	 * @return the start of a call, hand it to Timer.stop()
+	 */
+	public static long start() {
+		return System.nanoTime();
+	}
+
+	/**
+	 * Starts all the timers and counters over
+	 */
+	public static void reset() {
+		for (Timer timer : sTimers.values()) {
+			timer.reset();
+		}
+		for (Counter counter : sCounters.values()) {
+			counter.mValue.set(0);
+		}
+	}
+
+	/**
+	 * @return all the timers and counters as text, sorted by name (times in
+	 *         milliseconds, the percentiles rounded up to a power of two)
+	 */
+	public static String dump() {
+		StringBuilder out = new StringBuilder(4 * 1024);
+
+		out.append(String.format(Locale.US, "%-28s %7s %10s %8s %8s %7s %7s %7s%n",
+				"timer", "count", "total ms", "mean ms", "max ms", "p50", "p90", "p99"));
+
+		List<String> names = new ArrayList<String>(sTimers.keySet());
+
+		Collections.sort(names);
+		for (String name : names) {
+			Timer timer = sTimers.get(name);
+
+			if (timer.getCount() > 0) {
+				timer.dump(out);
+			}
+		}
+
+		out.append(String.format(Locale.US, "%n%-28s %10s%n", "counter", "value"));
+
+		names = new ArrayList<String>(sCounters.keySet());
+		Collections.sort(names);
+		for (String name : names) {
+			out.append(String.format(Locale.US, "%-28s %10d%n", name,
+					sCounters.get(name).get()));
+		}
+		return out.toString();
+	}
+
+	/**
+	 * @return the bucket of a time: [2^i, 2^(i+1)) microseconds
+	 */
+	private static int bucketOf(long micros) {
+		if (micros <= 1) {
+			return 0;
+		}
+		return Math.min(BUCKETS - 1, 63 - Long.numberOfLeadingZeros(micros));
+	}
+
+	private static String formatMicros(long micros) {
+		if (micros == 0) {
+			return "-";
+		} else if (micros < 1000) {
+			return micros + "us";
+		} else if (micros < 1000 * 1000) {
+			return micros / 1000 + "ms";
+		}
+		return micros / (1000 * 1000) + "s";
+	}
+}
@@ -0,0 +1,116 @@
+package com.android.demo.jnotepad.diagnostics;
+
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+import android.app.Activity;
+import android.os.Bundle;
+import android.util.Log;
+import android.view.Menu;
+import android.view.MenuInflater;
+import android.view.MenuItem;
+import android.widget.TextView;
+import android.widget.Toast;
+
+import com.android.demo.jnotepad.R;
+import com.android.demo.jnotepad.transfers.SDWriter;
+
+/**
+ * Shows the timers and counters (see Metrics) as a table, and can write
+ * them to a file on the SD card to be sent on. The files go in a directory
+ * of their own, with an extension the import does not take: the import
+ * reads every .txt under the export directory (and its subdirectories).
+ *
+ * @author jrymal
+ *
+ */
+public class MetricsActivity extends Activity {
+
+	private static final String TAG = "MetricsActivity";
+
+	/** The directory on the card the dumps go in (beside the exports) */
+	private static final String DUMP_DIR = "JNotepad-diagnostics";
+
+	private static final String DUMP_EXTENSION = ".log";
+
+	private TextView mText;
+
+	@Override
+	protected void onCreate(Bundle savedInstanceState) {
+		super.onCreate(savedInstanceState);
+		setContentView(R.layout.metrics_layout);
+		setTitle(R.string.metrics_title);
+
+		mText = (TextView) findViewById(R.id.metrics_layout_text);
+	}
+
+	@Override
+	protected void onResume() {
+		super.onResume();
+		refresh();
+	}
+
+	@Override
+	public boolean onCreateOptionsMenu(Menu menu) {
+		super.onCreateOptionsMenu(menu);
+
+		MenuInflater inflater = getMenuInflater();
+		inflater.inflate(R.menu.metrics_menu, menu);
+		return true;
+	}
+
+	@Override
+	public boolean onMenuItemSelected(int featureId, MenuItem item) {
+		switch (item.getItemId()) {
+			case R.id.metrics_menu_refresh:
+				refresh();
+				break;
+			case R.id.metrics_menu_reset:
+				Metrics.reset();
+				refresh();
+				break;
+			case R.id.metrics_menu_save:
+				saveToSDCard();
+				break;
+			default:
+				return super.onMenuItemSelected(featureId, item);
+		}
+		return true;
+	}
+
+	private void refresh() {
+		mText.setText(Metrics.dump());
+	}
+
+	/**
+	 * Writes the table as it is now to metrics-yyyyMMdd-HHmmss.log in 
+	 * DUMP_DIR
+	 */
+	private void saveToSDCard() {
+		String fileName = "metrics-" + new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US)
+				.format(new Date()) + DUMP_EXTENSION;
+
+		try {
+			SDWriter out = new SDWriter(DUMP_DIR, fileName);
+			boolean written = false;
+
+			try {
+				out.addData(Metrics.dump());
+				out.close();
+				written = true;
+			} finally {
+				if (!written) {
+					out.abort();
+				}
+			}
+
+			Toast.makeText(this, getString(R.string.metrics_saved, out.getFile().getPath()),
+					Toast.LENGTH_LONG).show();
+		} catch (IOException ex) {
+			Log.e(TAG, "could not write the metrics", ex);
+			Toast.makeText(this, R.string.metrics_save_failed, Toast.LENGTH_SHORT).show();
+		}
+	}
+}
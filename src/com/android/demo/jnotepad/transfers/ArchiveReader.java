@@ -0,0 +1,266 @@
+package com.android.demo.jnotepad.transfers;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reads the objects of an archive written by NoteExporter one at a time.
+ * This only knows the flat objects the exporter writes (string, number,
+ * true, false and null values), a nested object or array is an error.
+ *
+ * @author jrymal
+ *
+ */
+class ArchiveReader {
+
+	private final Reader mIn;
+
+	/** The character after the last one read (-2 when none was looked at) */
+	private int mPeek = -2;
+
+	/** The fields of the current object */
+	private final Map<String, Object> mFields = new HashMap<String, Object>();
+
+	private final StringBuilder mText = new StringBuilder();
+
+	/**
+	 * @param in the archive (buffer it, it is read a character at a time)
+	 */
+	ArchiveReader(Reader in) {
+		mIn = in;
+	}
+
+	/**
+	 * Moves to the next object of the archive
+	 *
+	 * @return false at the end of the archive
+	 * @throws IOException if the archive can't be read or is not well formed
+	 */
+	boolean next() throws IOException {
+		mFields.clear();
+
+		int c = skipSpace();
+
+		if (c < 0) {
+			return false;
+		}
+		expect('{');
+
+		if (skipSpace() == '}') {
+			read();
+			return true;
+		}
+
+		while (true) {
+			skipSpace();
+			String name = readString();
+
+			skipSpace();
+			expect(':');
+			skipSpace();
+			mFields.put(name, readValue());
+
+			c = skipSpace();
+			read();
+
+			if (c == '}') {
+				return true;
+			} else if (c != ',') {
+				throw new IOException("expected , or } in the archive but found " + describe(c));
+			}
+		}
+	}
+
+	/**
+	 * @return true if the current object has the field
+	 */
+	boolean has(String name) {
+		return mFields.containsKey(name);
+	}
+
+	/**
+	 * @return the string field of the current object (null if it is not
+	 *         there or not a string)
+	 */
+	String getString(String name) {
+		Object value = mFields.get(name);
+
+		return value instanceof String ? (String) value : null;
+	}
+
+	/**
+	 * @return the number field of the current object (otherwise if it is
+	 *         not there or not a number)
+	 */
+	long getLong(String name, long otherwise) {
+		Object value = mFields.get(name);
+
+		return value instanceof Number ? ((Number) value).longValue() : otherwise;
+	}
+
+	/**
+	 * Reads a value, the next character is its first one
+	 */
+	private Object readValue() throws IOException {
+		int c = peek();
+
+		if (c == '"') {
+			return readString();
+		} else if (c == '-' || (c >= '0' && c <= '9')) {
+			return readNumber();
+		} else if (c == 't') {
+			readWord("true");
+			return Boolean.TRUE;
+		} else if (c == 'f') {
+			readWord("false");
+			return Boolean.FALSE;
+		} else if (c == 'n') {
+			readWord("null");
+			return null;
+		}
+		throw new IOException("unexpected " + describe(c) + " in the archive");
+	}
+
+	/**
+	 * Reads a string, the next character is its opening quote
+	 */
+	private String readString() throws IOException {
+		expect('"');
+		mText.setLength(0);
+
+		while (true) {
+			int c = read();
+
+			if (c < 0) {
+				throw new IOException("the archive ends in a string");
+			} else if (c == '"') {
+				return mText.toString();
+			} else if (c != '\\') {
+				mText.append((char) c);
+				continue;
+			}
+
+			c = read();
+
+			switch (c) {
+				case '"':
+				case '\\':
+				case '/':
+					mText.append((char) c);
+					break;
+				case 'b':
+					mText.append('\b');
+					break;
+				case 'f':
+					mText.append('\f');
+					break;
+				case 'n':
+					mText.append('\n');
+					break;
+				case 'r':
+					mText.append('\r');
+					break;
+				case 't':
+					mText.append('\t');
+					break;
+				case 'u':
+					int code = 0;
+
+					for (int i = 0; i < 4; i++) {
+						int digit = Character.digit(read(), 16);
+
+						if (digit < 0) {
+							throw new IOException("bad \\u escape in the archive");
+						}
+						code = code * 16 + digit;
+					}
+					mText.append((char) code);
+					break;
+				default:
+					throw new IOException("bad escape " + describe(c) + " in the archive");
+			}
+		}
+	}
+
+	/**
+	 * Reads a number (a whole one as a Long, anything else as a Double)
+	 */
+	private Number readNumber() throws IOException {
+		mText.setLength(0);
+
+		int c = peek();
+
+		while (c == '-' || c == '+' || c == '.' || c == 'e' || c == 'E'
+				|| (c >= '0' && c <= '9')) {
+			mText.append((char) read());
+			c = peek();
+		}
+
+		String number = mText.toString();
+
+		try {
+			return Long.valueOf(number);
+		} catch (NumberFormatException ex) {
+			try {
+				return Double.valueOf(number);
+			} catch (NumberFormatException notNumber) {
+				throw new IOException("bad number " + number + " in the archive");
+			}
+		}
+	}
+
+	/**
+	 * Reads a literal word (true, false, null)
+	 */
+	private void readWord(String word) throws IOException {
+		for (int i = 0; i < word.length(); i++) {
+			expect(word.charAt(i));
+		}
+	}
+
+	/**
+	 * Reads the next character, which has to be c
+	 */
+	private void expect(char c) throws IOException {
+		int found = read();
+
+		if (found != c) {
+			throw new IOException("expected " + c + " in the archive but found " + describe(found));
+		}
+	}
+
+	/**
+	 * Skips white space (the new lines between the objects too)
+	 *
+	 * @return the next character (not read yet), -1 at the end
+	 */
+	private int skipSpace() throws IOException {
+		int c = peek();
+
+		while (c == ' ' || c == '\n' || c == '\r' || c == '\t') {
+			read();
+			c = peek();
+		}
+		return c;
+	}
+
+	private int peek() throws IOException {
+		if (mPeek == -2) {
+			mPeek = mIn.read();
+		}
+		return mPeek;
+	}
+
+	private int read() throws IOException {
+		int c = peek();
+
+		mPeek = -2;
+		return c;
+	}
+
+	private static String describe(int c) {
+		return c < 0 ? "the end" : "'" + (char) c + "'";
+	}
+}
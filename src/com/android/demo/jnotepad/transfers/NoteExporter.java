@@ -0,0 +1,262 @@
+package com.android.demo.jnotepad.transfers;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.os.Handler;
+
+import com.android.demo.jnotepad.NotesDbAdapter;
+import com.android.demo.jnotepad.diagnostics.Metrics;
+
+/**
+ * Exports the notes into one archive on the SD card. The archive is a JSON
+ * lines file: a header line, then one line per note
+ * <pre>
+ * {"format":"jnotepad","version":1,"since":0}
+ * {"id":12,"datetime":1300000000000,"body":"..."}
+ * </pre>
+ * The notes are read off a cursor that holds only their ids, and each body
+ * is streamed from the DB into the file, so the memory used does not grow
+ * with the number of notes or the size of a note.
+ *
+ * An incremental export only takes the notes saved since the last export
+ * that finished (the time is kept in the preferences). export() is slow,
+ * run it off the UI thread (see NoteRepository.exportNotes()).
+ *
+ * @author jrymal
+ *
+ */
+public class NoteExporter {
+
+	/**
+	 * Hears how far along the export is
+	 */
+	public interface ProgressListener {
+
+		/**
+		 * Called on the UI thread after each note
+		 *
+		 * @param done the number of notes exported so far
+		 * @param total the number of notes to export
+		 */
+		void onExportProgress(int done, int total);
+	}
+
+	/** What the header line says the file is */
+	public static final String FORMAT = "jnotepad";
+	public static final int VERSION = 1;
+
+	/** The directory on the card the archives go in */
+	public static final String EXPORT_DIR = "JNotepad";
+
+	/** The preference holding when the last export started */
+	private static final String PREF_LAST_EXPORT = "last_export";
+
+	/** The characters of a body read at a time */
+	private static final int READ_BUFFER_SIZE = 4 * 1024;
+
+	/** Progress is posted at most this often (in notes) */
+	private static final int PROGRESS_STEP = 20;
+
+	private static final Metrics.Timer EXPORT = Metrics.timer("export.archive");
+	private static final Metrics.Counter EXPORTED_NOTES = Metrics.counter("export.notes");
+
+	private final SharedPreferences mPrefs;
+	private final boolean mIncremental;
+	private final ProgressListener mListener;
+	private final Handler mHandler = new Handler();
+
+	private volatile boolean mCancelled;
+	private volatile int mExported;
+
+	/**
+	 * Call this on the UI thread (the progress is posted back to it)
+	 *
+	 * @param prefs where the time of the last export is kept
+	 * @param incremental true to only export the notes saved since the last
+	 *        export
+	 * @param listener hears the progress (can be null)
+	 */
+	public NoteExporter(SharedPreferences prefs, boolean incremental,
+			ProgressListener listener) {
+		mPrefs = prefs;
+		mIncremental = incremental;
+		mListener = listener;
+	}
+
+	/**
+	 * Stops the export after the note it is on, nothing is written
+	 */
+	public void cancel() {
+		mCancelled = true;
+	}
+
+	/**
+	 * @return true if cancel() was called
+	 */
+	public boolean isCancelled() {
+		return mCancelled;
+	}
+
+	/**
+	 * @return the number of notes in the archive (once export() is done)
+	 */
+	public int getExportedCount() {
+		return mExported;
+	}
+
+	/**
+	 * Writes the archive
+	 *
+	 * @param db the open notes DB
+	 * @return the archive, or null if there was nothing to export or the
+	 *         export was cancelled
+	 * @throws IOException if the archive could not be written
+	 */
+	public File export(NotesDbAdapter db) throws IOException {
+		/* A note saved while this runs is in the next export too */
+		long started = System.currentTimeMillis();
+		long since = mIncremental ? mPrefs.getLong(PREF_LAST_EXPORT, 0) : 0;
+		long start = Metrics.start();
+
+		Cursor notes = db.fetchNotesSince(since);
+		SDWriter out = null;
+		boolean written = false;
+
+		try {
+			int total = notes.getCount();
+
+			if (total == 0) {
+				return null;
+			}
+
+			out = new SDWriter(EXPORT_DIR, buildFileName(started));
+
+			StringBuilder line = new StringBuilder(READ_BUFFER_SIZE + 64);
+			char[] buffer = new char[READ_BUFFER_SIZE];
+			int done = 0;
+
+			line.append("{\"format\":\"").append(FORMAT).append("\",\"version\":")
+					.append(VERSION).append(",\"since\":").append(since).append("}\n");
+			out.addData(line);
+
+			while (notes.moveToNext()) {
+				if (mCancelled) {
+					return null;
+				}
+
+				long rowId = notes.getLong(0);
+				Reader body = db.openBodyReader(rowId);
+
+				/* deleted since the query */
+				if (body == null) {
+					continue;
+				}
+
+				line.setLength(0);
+				line.append("{\"id\":").append(rowId).append(",\"datetime\":")
+						.append(notes.getLong(1)).append(",\"body\":\"");
+
+				try {
+					for (int read = body.read(buffer); read >= 0; read = body.read(buffer)) {
+						appendEscaped(line, buffer, read);
+
+						out.addData(line);
+						line.setLength(0);
+					}
+				} finally {
+					body.close();
+				}
+
+				line.append("\"}\n");
+				out.addData(line);
+
+				done++;
+
+				if (done % PROGRESS_STEP == 0 || done == total) {
+					postProgress(done, total);
+				}
+			}
+
+			out.close();
+			written = true;
+			mExported = done;
+			EXPORTED_NOTES.add(done);
+
+			mPrefs.edit().putLong(PREF_LAST_EXPORT, started).commit();
+			return out.getFile();
+		} finally {
+			/* Nothing is left on the card from an export that didn't finish */
+			if (out != null && !written) {
+				out.abort();
+			}
+			notes.close();
+			EXPORT.stop(start);
+		}
+	}
+
+	/**
+	 * Appends text as the inside of a JSON string
+	 */
+	static void appendEscaped(StringBuilder out, char[] text, int length) {
+		for (int i = 0; i < length; i++) {
+			char c = text[i];
+
+			switch (c) {
+				case '"':
+					out.append("\\\"");
+					break;
+				case '\\':
+					out.append("\\\\");
+					break;
+				case '\n':
+					out.append("\\n");
+					break;
+				case '\r':
+					out.append("\\r");
+					break;
+				case '\t':
+					out.append("\\t");
+					break;
+				default:
+					if (c < ' ') {
+						out.append("\\u00").append(Character.forDigit(c >> 4, 16))
+								.append(Character.forDigit(c & 0xf, 16));
+					} else {
+						out.append(c);
+					}
+			}
+		}
+	}
+
+	/**
+	 * @return notes-yyyyMMdd-HHmmss.jsonl for the time the export started
+	 */
+	private static String buildFileName(long started) {
+		return "notes-" + new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US)
+				.format(new Date(started)) + ".jsonl";
+	}
+
+	/**
+	 * Hands the progress to the listener on the UI thread
+	 */
+	private void postProgress(final int done, final int total) {
+		if (mListener == null) {
+			return;
+		}
+
+		mHandler.post(new Runnable() {
+			public void run() {
+				if (!mCancelled) {
+					mListener.onExportProgress(done, total);
+				}
+			}
+		});
+	}
+}
@@ -0,0 +1,374 @@
+package com.android.demo.jnotepad.transfers;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.os.Handler;
+import android.util.Log;
+
+import com.android.demo.jnotepad.BodyText;
+import com.android.demo.jnotepad.ContentHash;
+import com.android.demo.jnotepad.NotesDbAdapter;
+
+/**
+ * Brings notes in from files. The source can be
+ * <ul>
+ * <li>a plain text file (UTF-8), which becomes one note</li>
+ * <li>an archive written by NoteExporter (.jsonl), one note per line, the
+ * notes keep their time stamps</li>
+ * <li>a directory, everything in it (and below it) that is one of the
+ * above</li>
+ * </ul>
+ * The files are read as streams and the notes go into the DB in large
+ * batches, one transaction per batch, so thousands of notes take seconds.
+ *
+ * A text file over MAX_TEXT_BYTES is not imported (it would have to be
+ * held whole in memory to become one note), it is counted instead, see
+ * getTooLargeCount().
+ *
+ * A note whose text is already in the DB (or earlier in the import) is
+ * skipped. The content hash of the body finds the notes it could be (in the
+ * DB's hash index, or in the batch being put together) and their bodies
+ * are compared, so importing the same archive twice adds nothing and a
+ * note that only shares a hash is still imported.
+ *
+ * importNotes() is slow, run it off the UI thread (see
+ * NoteRepository.importNotes()).
+ *
+ * @author jrymal
+ *
+ */
+public class NoteImporter {
+
+	/**
+	 * Hears how far along the import is
+	 */
+	public interface ProgressListener {
+
+		/**
+		 * Called on the UI thread after each batch and each file
+		 *
+		 * @param imported the number of notes added so far
+		 * @param percent how much of the source has been read
+		 */
+		void onImportProgress(int imported, int percent);
+	}
+
+	/** The most notes written per transaction */
+	private static final int BATCH_SIZE = 500;
+
+	/** A batch is also written once it holds this many characters */
+	private static final int BATCH_CHARS = 1024 * 1024;
+
+	/** The extension of an archive */
+	private static final String ARCHIVE_EXTENSION = ".jsonl";
+
+	/** The extension of a text file in a directory */
+	private static final String TEXT_EXTENSION = ".txt";
+
+	/**
+	 * The biggest text file imported, a note is kept in memory whole while it
+	 * is hashed and batched so the batch limits don't help with one file
+	 */
+	public static final int MAX_TEXT_BYTES = 1024 * 1024;
+
+	/** The characters of a text file read at a time */
+	private static final int READ_BUFFER_SIZE = 8 * 1024;
+
+	private static final String TAG = "NoteImporter";
+
+	private final File mSource;
+	private final ProgressListener mListener;
+	private final Handler mHandler = new Handler();
+
+	private NotesDbAdapter mDb;
+
+	/**
+	 * The bodies of the batch not yet written, by hash (the DB is asked for
+	 * the rest). A hash can be shared by different bodies, so each has a list.
+	 */
+	private final Map<Long, List<String>> mBatchBodies = new HashMap<Long, List<String>>();
+
+	private final List<NotesDbAdapter.BatchOperation> mBatch =
+		new ArrayList<NotesDbAdapter.BatchOperation>(BATCH_SIZE);
+	private int mBatchChars;
+
+	private long mTotalBytes;
+	private long mBytesRead;
+
+	private volatile int mImported;
+	private volatile int mDuplicates;
+	private volatile int mTooLarge;
+
+	/**
+	 * Call this on the UI thread (the progress is posted back to it)
+	 *
+	 * @param source the file or directory to import
+	 * @param listener hears the progress (can be null)
+	 */
+	public NoteImporter(File source, ProgressListener listener) {
+		mSource = source;
+		mListener = listener;
+	}
+
+	/**
+	 * @return the number of notes added
+	 */
+	public int getImportedCount() {
+		return mImported;
+	}
+
+	/**
+	 * @return the number of notes skipped because they were already there
+	 */
+	public int getDuplicateCount() {
+		return mDuplicates;
+	}
+
+	/**
+	 * @return the number of text files left out because they were bigger
+	 * than MAX_TEXT_BYTES
+	 */
+	public int getTooLargeCount() {
+		return mTooLarge;
+	}
+
+	/**
+	 * Imports the notes. The batches written before a failure stay in the
+	 * DB (importing again skips them).
+	 *
+	 * @param db the open notes DB
+	 * @return the number of notes added
+	 * @throws IOException if the source can't be read
+	 */
+	public int importNotes(NotesDbAdapter db) throws IOException {
+		mDb = db;
+
+		List<File> files = new ArrayList<File>();
+
+		if (mSource.isDirectory()) {
+			listFiles(mSource, files);
+		} else if (mSource.isFile()) {
+			files.add(mSource);
+		} else {
+			throw new IOException("Cannot find " + mSource);
+		}
+
+		for (File file : files) {
+			mTotalBytes += file.length();
+		}
+
+		for (File file : files) {
+			if (file.getName().endsWith(ARCHIVE_EXTENSION)) {
+				importArchive(file);
+			} else {
+				importText(file);
+			}
+			postProgress();
+		}
+
+		writeBatch();
+		return mImported;
+	}
+
+	/**
+	 * Adds the files of a directory (and of the ones in it) that can be
+	 * imported, hidden ones are left out
+	 */
+	private static void listFiles(File dir, List<File> files) {
+		File[] entries = dir.listFiles();
+
+		if (entries == null) {
+			return;
+		}
+
+		for (File entry : entries) {
+			String name = entry.getName();
+
+			if (name.startsWith(".")) {
+				continue;
+			}
+
+			if (entry.isDirectory()) {
+				listFiles(entry, files);
+			} else if (name.endsWith(ARCHIVE_EXTENSION) || name.endsWith(TEXT_EXTENSION)) {
+				files.add(entry);
+			}
+		}
+	}
+
+	/**
+	 * Imports a text file as one note, it gets the time the file was changed.
+	 * A file over MAX_TEXT_BYTES is skipped.
+	 */
+	private void importText(File file) throws IOException {
+		if (file.length() > MAX_TEXT_BYTES) {
+			skipTooLarge(file);
+			return;
+		}
+
+		Reader in = open(file);
+
+		try {
+			/* UTF-8 takes at least one byte per char */
+			StringBuilder body = new StringBuilder((int) file.length());
+			char[] buffer = new char[READ_BUFFER_SIZE];
+
+			for (int read = in.read(buffer); read >= 0; read = in.read(buffer)) {
+				body.append(buffer, 0, read);
+
+				if (body.length() > MAX_TEXT_BYTES) {
+					/* it grew while being read */
+					skipTooLarge(file);
+					return;
+				}
+			}
+			addNote(BodyText.trim(body), file.lastModified());
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Counts a text file that was too big to import
+	 */
+	private void skipTooLarge(File file) {
+		Log.w(TAG, "not importing " + file + ", it is over " + MAX_TEXT_BYTES + " bytes");
+		mTooLarge++;
+	}
+
+	/**
+	 * Imports the notes of an archive
+	 */
+	private void importArchive(File file) throws IOException {
+		Reader in = open(file);
+
+		try {
+			ArchiveReader archive = new ArchiveReader(in);
+
+			while (archive.next()) {
+				if (archive.has("format")) {
+					/* the header */
+					if (!NoteExporter.FORMAT.equals(archive.getString("format"))) {
+						throw new IOException(file + " is not a notes archive");
+					}
+					continue;
+				}
+
+				String body = archive.getString("body");
+
+				if (body != null) {
+					addNote(body.trim(), archive.getLong("datetime", file.lastModified()));
+				}
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Queues a note for the batch (unless it is empty or already there)
+	 */
+	private void addNote(String body, long datetime) {
+		if (body.length() == 0) {
+			return;
+		}
+
+		long hash = ContentHash.of(body);
+
+		List<String> bodies = mBatchBodies.get(hash);
+
+		if ((bodies != null && bodies.contains(body)) || mDb.hasNoteWithBody(hash, body)) {
+			mDuplicates++;
+			return;
+		}
+
+		if (bodies == null) {
+			bodies = new ArrayList<String>(1);
+			mBatchBodies.put(hash, bodies);
+		}
+		bodies.add(body);
+
+		mBatch.add(NotesDbAdapter.BatchOperation.create(body, datetime));
+		mBatchChars += body.length();
+
+		if (mBatch.size() >= BATCH_SIZE || mBatchChars >= BATCH_CHARS) {
+			writeBatch();
+			postProgress();
+		}
+	}
+
+	/**
+	 * Writes the queued notes in one transaction
+	 */
+	private void writeBatch() {
+		if (mBatch.isEmpty()) {
+			return;
+		}
+
+		mDb.applyBatch(mBatch);
+		mImported += mBatch.size();
+
+		mBatch.clear();
+		mBatchBodies.clear();
+		mBatchChars = 0;
+	}
+
+	/**
+	 * Opens a file as UTF-8 text, counting the bytes read for the progress
+	 */
+	private Reader open(File file) throws IOException {
+		InputStream in = new FilterInputStream(new FileInputStream(file)) {
+			@Override
+			public int read() throws IOException {
+				int b = super.read();
+
+				if (b >= 0) {
+					mBytesRead++;
+				}
+				return b;
+			}
+
+			@Override
+			public int read(byte[] buffer, int offset, int count) throws IOException {
+				int read = super.read(buffer, offset, count);
+
+				if (read > 0) {
+					mBytesRead += read;
+				}
+				return read;
+			}
+		};
+
+		return new BufferedReader(new InputStreamReader(in, "UTF-8"), READ_BUFFER_SIZE);
+	}
+
+	/**
+	 * Hands the progress to the listener on the UI thread
+	 */
+	private void postProgress() {
+		if (mListener == null) {
+			return;
+		}
+
+		final int imported = mImported;
+		final int percent = mTotalBytes == 0 ? 100
+				: (int) Math.min(100, mBytesRead * 100 / mTotalBytes);
+
+		mHandler.post(new Runnable() {
+			public void run() {
+				mListener.onImportProgress(imported, percent);
+			}
+		});
+	}
+}
@@ -1,38 +1,83 @@
 package com.android.demo.jnotepad.transfers;
 
 import java.io.File;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
 
 import android.os.Environment;
 
+/**
+ * Writes a text file to the SD card. The text is encoded as UTF-8 into a 
+ * buffer and written to the file's channel a buffer at a time, so a body 
+ * of any size goes out in constant memory (see addData(Reader)).
+ * 
+ * The text goes to a temporary file next to the real one, which is only 
+ * renamed into place by close(). An export that fails half way never 
+ * leaves half a file behind, and a file that is already there is never 
+ * overwritten (the new one gets a numbered name instead).
+ */
 public class SDWriter {
 
-	/**
-	 * The writer object
-	 */
-	private FileWriter writer;
+	/** The characters encoded at a time */
+	private static final int CHAR_BUFFER_SIZE = 8 * 1024;
+	
+	/** UTF-8 takes up to 3 bytes for a char (4 for a pair of them) */
+	private static final int BYTE_BUFFER_SIZE = 3 * CHAR_BUFFER_SIZE;
+	
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	
+	/** The characters that can't be in a file name on the SD card (fat) */
+	private static final String BAD_FILE_NAME_CHARS = "/\\:*?\"<>|";
+	
+	private final File mDir;
+	private final String mFileName;
+	private final File mTempFile;
+	private final FileOutputStream mOut;
+	private final FileChannel mChannel;
+	private final CharsetEncoder mEncoder;
+	private final CharBuffer mChars = CharBuffer.allocate(CHAR_BUFFER_SIZE);
+	private final ByteBuffer mBytes = ByteBuffer.allocate(BYTE_BUFFER_SIZE);
+	
+	/** Where the file ended up (set by close()) */
+	private File mFile;
 	
 	/**
 	 * Builds a writer to the SD card's file system
 	 * 
 	 * @param rootDir the core directory to write new files into
-	 * @param fileName the new file name to create (can over write old files)
-	 * @throws IOException if we cannot open the sd card or the FileWriter class throws one on open
+	 * @param fileName the new file name to create (if there is a file by 
+	 *        that name already, a number is added to the name)
+	 * @throws IOException if we cannot open the sd card or the temporary 
+	 *         file can't be created
 	 */
-	//TODO: fix so overwriting is protected
 	public SDWriter(String rootDir, String fileName) throws IOException {
 		
 		if (!canOpenSDCard()) {
 			throw new IOException("Cannot write to SD Card!");
 		}
 		
-        File root = new File(Environment.getExternalStorageDirectory(), rootDir);
-        if (!root.exists()) {
-            root.mkdirs();
+        mDir = new File(Environment.getExternalStorageDirectory(), rootDir);
+        if (!mDir.exists()) {
+            mDir.mkdirs();
         }
-        File gpxfile = new File(root, fileName);
-        writer = new FileWriter(gpxfile);
+        mFileName = cleanFileName(fileName);
+        
+        /* In the same directory, so the rename at the end is atomic */
+        mTempFile = File.createTempFile(".export", ".tmp", mDir);
+        mOut = new FileOutputStream(mTempFile);
+        mChannel = mOut.getChannel();
+        
+        mEncoder = UTF_8.newEncoder()
+        		.onMalformedInput(CodingErrorAction.REPLACE)
+        		.onUnmappableCharacter(CodingErrorAction.REPLACE);
 	}
 	
 	/**
@@ -69,22 +114,172 @@ public class SDWriter {
 	}
 
 	/**
-	 * Adds new data to the FileWriter
+	 * Adds new text to the file
 	 * 
 	 * @param body the new text to add
-	 * @throws IOException thrown if the add fails of if flush fails.
+	 * @throws IOException thrown if the write fails
 	 */
-	public void addData(String body) throws IOException {
-		writer.append(body);
-		writer.flush();
+	public void addData(CharSequence body) throws IOException {
+		addData(body, 0, body.length());
+	}
+	
+	/**
+	 * Adds part of a text to the file (without copying it out first)
+	 * 
+	 * @param body the text
+	 * @param start the first character to add
+	 * @param end the index after the last character to add
+	 * @throws IOException thrown if the write fails
+	 */
+	public void addData(CharSequence body, int start, int end) throws IOException {
+		for (int i = start; i < end; i++) {
+			if (!mChars.hasRemaining()) {
+				encodeChars(false);
+			}
+			mChars.put(body.charAt(i));
+		}
+	}
+	
+	/**
+	 * Adds everything a Reader has to the file, a buffer at a time
+	 * 
+	 * @param body the text to add (it is read to the end, not closed)
+	 * @throws IOException thrown if the read or the write fails
+	 */
+	public void addData(Reader body) throws IOException {
+		while (body.read(mChars) >= 0) {
+			if (!mChars.hasRemaining()) {
+				encodeChars(false);
+			}
+		}
 	}
 
 	/**
-	 * Closes the FileWriter
-	 * @throws IOException thrown if the close fails
+	 * Writes out what is left, then moves the file into place
+	 * 
+	 * @throws IOException thrown if the write or the rename fails (the 
+	 *         temporary file is removed)
 	 */
 	public void close() throws IOException {
-        writer.close();
+		if (mFile != null) {
+			return;
+		}
+		
+		boolean done = false;
+		
+		try {
+			encodeChars(true);
+			
+			while (mEncoder.flush(mBytes).isOverflow()) {
+				writeBytes();
+			}
+			writeBytes();
+			
+			/* on the card before it gets its name */
+			mChannel.force(false);
+			mOut.close();
+			
+			File file = uniqueFile(mDir, mFileName);
+			
+			if (!mTempFile.renameTo(file)) {
+				throw new IOException("Cannot rename " + mTempFile + " to " + file);
+			}
+			mFile = file;
+			done = true;
+		} finally {
+			if (!done) {
+				abort();
+			}
+		}
 	}
-
-}
\ No newline at end of file
+	
+	/**
+	 * Drops the file (nothing is written to the real name)
+	 */
+	public void abort() {
+		try {
+			mOut.close();
+		} catch (IOException ex) {
+			/* it is being thrown away */
+		}
+		mTempFile.delete();
+	}
+	
+	/**
+	 * @return the file that was written (null until close() has succeeded)
+	 */
+	public File getFile() {
+		return mFile;
+	}
+	
+	/**
+	 * Encodes the buffered characters into the byte buffer, writing that 
+	 * out whenever it fills up. A character cut in half by the end of the 
+	 * buffer is kept for the next call.
+	 * 
+	 * @param endOfInput true if there is no more text to come
+	 */
+	private void encodeChars(boolean endOfInput) throws IOException {
+		mChars.flip();
+		
+		CoderResult result = mEncoder.encode(mChars, mBytes, endOfInput);
+		
+		while (result.isOverflow()) {
+			writeBytes();
+			result = mEncoder.encode(mChars, mBytes, endOfInput);
+		}
+		
+		if (result.isError()) {
+			result.throwException();
+		}
+		mChars.compact();
+	}
+	
+	/**
+	 * Writes the byte buffer to the file
+	 */
+	private void writeBytes() throws IOException {
+		mBytes.flip();
+		
+		while (mBytes.hasRemaining()) {
+			mChannel.write(mBytes);
+		}
+		mBytes.clear();
+	}
+	
+	/**
+	 * @return a name that is free in the directory: the file name, or the 
+	 *         file name with a number added before its extension
+	 */
+	private static File uniqueFile(File dir, String fileName) {
+		File file = new File(dir, fileName);
+		
+		if (!file.exists()) {
+			return file;
+		}
+		
+		int dot = fileName.lastIndexOf('.');
+		String base = dot > 0 ? fileName.substring(0, dot) : fileName;
+		String extension = dot > 0 ? fileName.substring(dot) : "";
+		
+		for (int i = 1; file.exists(); i++) {
+			file = new File(dir, base + "-" + i + extension);
+		}
+		return file;
+	}
+	
+	/**
+	 * @return the file name with the characters the card can't take 
+	 *         replaced
+	 */
+	private static String cleanFileName(String fileName) {
+		StringBuilder clean = new StringBuilder(fileName.length());
+		
+		for (int i = 0; i < fileName.length(); i++) {
+			char c = fileName.charAt(i);
+			
+			clean.append(c < ' ' || BAD_FILE_NAME_CHARS.indexOf(c) >= 0 ? '_' : c);
+		}
+		return clean.toString();
+	}
+}
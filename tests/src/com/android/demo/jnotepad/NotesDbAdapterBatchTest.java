@@ -0,0 +1,85 @@
+package com.android.demo.jnotepad;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import android.test.AndroidTestCase;
+import android.test.RenamingDelegatingContext;
+
+/**
+ * Runs batches against a database of its own (the notes of the phone are
+ * not touched).
+ *
+ * @author jrymal
+ *
+ */
+public class NotesDbAdapterBatchTest extends AndroidTestCase {
+
+	private NotesDbAdapter mDb;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+
+		RenamingDelegatingContext ctx =
+			new RenamingDelegatingContext(getContext(), "batch_test_");
+
+		ctx.deleteDatabase("data");
+		mDb = new NotesDbAdapter(ctx).open();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mDb.close();
+		super.tearDown();
+	}
+
+	/**
+	 * An update of a note that is not there is a 0 in the results, the
+	 * rest of the batch is still applied
+	 */
+	public void testUpdateOfMissingNoteKeepsTheBatch() {
+		long kept = mDb.createNote("kept");
+		long deleted = mDb.createNote("deleted");
+		long missing = deleted + 1000;
+		List<NotesDbAdapter.BatchOperation> operations =
+			new ArrayList<NotesDbAdapter.BatchOperation>();
+
+		operations.add(NotesDbAdapter.BatchOperation.create("created"));
+		operations.add(NotesDbAdapter.BatchOperation.update(missing, "nowhere"));
+		operations.add(NotesDbAdapter.BatchOperation.update(kept, "kept, changed"));
+		operations.add(NotesDbAdapter.BatchOperation.delete(deleted));
+
+		long[] results = mDb.applyBatch(operations);
+
+		assertTrue(results[0] > 0);
+		assertEquals(0, results[1]);
+		assertEquals(1, results[2]);
+		assertEquals(1, results[3]);
+
+		assertEquals("created", mDb.fetchNoteBody(results[0]));
+		assertEquals("kept, changed", mDb.fetchNoteBody(kept));
+		assertNull(mDb.fetchNoteBody(deleted));
+	}
+
+	/**
+	 * The same, for work run through runInTransaction() (the provider's
+	 * batches)
+	 */
+	public void testUpdateOfMissingNoteKeepsTheTransaction() throws Exception {
+		final long kept = mDb.createNote("kept");
+		final long missing = kept + 1000;
+
+		long created = mDb.runInTransaction(new Callable<Long>() {
+			public Long call() {
+				assertFalse(mDb.updateNote(missing, "nowhere"));
+				assertTrue(mDb.updateNote(kept, "kept, changed"));
+				return mDb.createNote("created");
+			}
+		});
+
+		assertEquals("created", mDb.fetchNoteBody(created));
+		assertEquals("kept, changed", mDb.fetchNoteBody(kept));
+	}
+}
@@ -0,0 +1,75 @@
+package com.android.demo.jnotepad;
+
+import java.io.UnsupportedEncodingException;
+
+import android.test.AndroidTestCase;
+import android.test.RenamingDelegatingContext;
+import android.util.Log;
+
+/**
+ * Measures what long bodies take up on disk, with a database of its own
+ * (the notes of the phone are not touched).
+ *
+ * @author jrymal
+ *
+ */
+public class NotesDbAdapterStorageTest extends AndroidTestCase {
+
+	private static final String TAG = "NotesDbAdapterStorageTest";
+
+	private NotesDbAdapter mDb;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+
+		RenamingDelegatingContext ctx =
+			new RenamingDelegatingContext(getContext(), "storage_test_");
+
+		ctx.deleteDatabase("data");
+		mDb = new NotesDbAdapter(ctx).open();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mDb.close();
+		super.tearDown();
+	}
+
+	/**
+	 * Long bodies are stored compressed, the full text index keeps them
+	 * whole, so its copy is the bigger one
+	 */
+	public void testFullTextCopyOutweighsCompressedBodies() throws UnsupportedEncodingException {
+		long textBytes = 0;
+
+		for (int i = 0; i < 20; i++) {
+			String body = longBody(i);
+
+			mDb.createNote(body);
+			textBytes += body.getBytes("UTF-8").length;
+		}
+
+		long[] sizes = mDb.measureBodyStorage();
+
+		Log.i(TAG, "text " + textBytes + " bytes, stored " + sizes[0]
+				+ " bytes, full text copy " + sizes[1] + " bytes");
+
+		assertEquals(textBytes, sizes[1]);
+		assertTrue(sizes[0] * 2 < sizes[1]);
+	}
+
+	/**
+	 * @return a body well over the compression threshold that reads like
+	 *         a note (repeated words, some numbers)
+	 */
+	private static String longBody(int note) {
+		StringBuilder body = new StringBuilder();
+
+		for (int line = 0; body.length() < 16 * BodyCodec.COMPRESS_THRESHOLD; line++) {
+			body.append("Note ").append(note).append(", line ").append(line)
+				.append(": the quick brown fox jumps over the lazy dog\n");
+		}
+		return body.toString();
+	}
+}